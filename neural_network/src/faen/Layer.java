@@ -0,0 +1,481 @@
+package faen;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A fully connected layer of nodes, NN is a stack of them. The weights are
+ * one flat row major matrix with a row per input and a last row for the
+ * bias: weights[i * nodes + j] is the weight from input i to node j,
+ * weights[inputs * nodes + j] the bias of node j.
+ * 
+ * A single precision layer keeps its weights and momentum in floats, half
+ * the memory and memory traffic. Training computes the weighted sums and
+ * gradients in float too, see Batch, predicate() always sums in double.
+ */
+public class Layer {
+    // Rows of weights handled together by the mini batch loops, small enough
+    // for the rows and their gradients to stay in cache while every instance
+    // of the batch passes over them.
+    private static final int BLOCK_ROWS = 32;
+
+    // Deltas below this are taken as 0 in float. Saturated nodes have deltas
+    // near 0, and gradients and momentum made from them would go subnormal,
+    // below Float.MIN_NORMAL, where x86 float arithmetic is many times
+    // slower. Such a delta moves a weight by about rate * 1e-20 at most,
+    // far below what float can add to a weight near 1.
+    private static final double MIN_FLOAT_DELTA = 1e-20;
+
+    private final int inputs;
+    private final int nodes;
+    private final Activation activation;
+    // The weights are in exactly one of weights and floatWeights.
+    private final double[] weights;
+    private final float[] floatWeights;
+    // last change in weights for momentum, allocated by initializeWeights()
+    private double[] weightsMomentum;
+    private float[] floatWeightsMomentum;
+
+    // A layer of sigmoid nodes.
+    public Layer(int inputs, int nodes) {
+        this(inputs, nodes, Activation.SIGMOID);
+    }
+
+    public Layer(int inputs, int nodes, Activation activation) {
+        this(inputs, nodes, activation, false);
+    }
+
+    public Layer(int inputs, int nodes, Activation activation, boolean singlePrecision) {
+        NN.Util.CHECK(inputs > 0, "");
+        NN.Util.CHECK(nodes > 0, "");
+        this.inputs = inputs;
+        this.nodes = nodes;
+        this.activation = activation;
+        this.weights = singlePrecision ? null : new double[(inputs + 1) * nodes];
+        this.floatWeights = singlePrecision ? new float[(inputs + 1) * nodes] : null;
+    }
+
+    // A layer with the same weights, nothing else is copied.
+    Layer copyWeights() {
+        Layer copy = new Layer(inputs, nodes, activation, isSinglePrecision());
+        if (weights != null) {
+            System.arraycopy(weights, 0, copy.weights, 0, weights.length);
+        } else {
+            System.arraycopy(floatWeights, 0, copy.floatWeights, 0, floatWeights.length);
+        }
+        return copy;
+    }
+
+    public boolean isSinglePrecision() {
+        return floatWeights != null;
+    }
+
+    // Number of bytes used to keep the weights and their momentum.
+    public long getMemorySize() {
+        long size = (long) (inputs + 1) * nodes * (weights != null ? 8 : 4);
+        return weightsMomentum != null || floatWeightsMomentum != null ? 2 * size : size;
+    }
+
+    public int getNumOfInputs() {
+        return inputs;
+    }
+
+    public int getNumOfNodes() {
+        return nodes;
+    }
+
+    public Activation getActivation() {
+        return activation;
+    }
+
+    // Randomly initialize the weights, and forget the momentum.
+    void initializeWeights(Random rand) {
+        int size = (inputs + 1) * nodes;
+        for (int i = 0; i < size; i++) {
+            // [-2.0, 2.0]
+            double w = rand.nextDouble() * 4 - 2;
+            if (weights != null) {
+                weights[i] = w;
+            } else {
+                floatWeights[i] = (float) w;
+            }
+        }
+        if (weights != null) {
+            if (weightsMomentum == null) {
+                weightsMomentum = new double[size];
+            } else {
+                Arrays.fill(weightsMomentum, 0);
+            }
+        } else {
+            if (floatWeightsMomentum == null) {
+                floatWeightsMomentum = new float[size];
+            } else {
+                Arrays.fill(floatWeightsMomentum, 0);
+            }
+        }
+    }
+
+    // Write the shape, the weights and their momentum to out.
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(inputs);
+        out.writeInt(nodes);
+        out.writeUTF(activation.name());
+        out.writeBoolean(isSinglePrecision());
+        int size = (inputs + 1) * nodes;
+        for (int i = 0; i < size; i++) {
+            if (weights != null) {
+                out.writeDouble(weights[i]);
+                out.writeDouble(weightsMomentum[i]);
+            } else {
+                out.writeFloat(floatWeights[i]);
+                out.writeFloat(floatWeightsMomentum[i]);
+            }
+        }
+    }
+
+    // Read what write() wrote for a layer of the same shape, instead of
+    // initializeWeights().
+    void read(DataInputStream in) throws IOException {
+        NN.Util.CHECK(in.readInt() == inputs && in.readInt() == nodes
+                && in.readUTF().equals(activation.name())
+                && in.readBoolean() == isSinglePrecision(), "not written by a layer like this");
+        int size = (inputs + 1) * nodes;
+        if (weights != null && weightsMomentum == null) {
+            weightsMomentum = new double[size];
+        }
+        if (floatWeights != null && floatWeightsMomentum == null) {
+            floatWeightsMomentum = new float[size];
+        }
+        for (int i = 0; i < size; i++) {
+            if (weights != null) {
+                weights[i] = in.readDouble();
+                weightsMomentum[i] = in.readDouble();
+            } else {
+                floatWeights[i] = in.readFloat();
+                floatWeightsMomentum[i] = in.readFloat();
+            }
+        }
+    }
+
+    // Copy row i of weights into row.
+    private void copyRow(int i, double[] row) {
+        if (weights != null) {
+            System.arraycopy(weights, i * nodes, row, 0, nodes);
+        } else {
+            int offset = i * nodes;
+            for (int j = 0; j < nodes; j++) {
+                row[j] = floatWeights[offset + j];
+            }
+        }
+    }
+
+    // Activations of one input into output, adding one row of weights at a
+    // time to the bias. Only reads the weights.
+    void forward(double[] input, double[] output) {
+        copyRow(inputs, output);
+        for (int i = 0; i < inputs; i++) {
+            double x = input[i];
+            if (x == 0) {
+                continue;
+            }
+            int row = i * nodes;
+            if (weights != null) {
+                for (int j = 0; j < nodes; j++) {
+                    output[j] += x * weights[row + j];
+                }
+            } else {
+                for (int j = 0; j < nodes; j++) {
+                    output[j] += x * floatWeights[row + j];
+                }
+            }
+        }
+        activation.activate(output);
+    }
+
+    // Add the gradients of batches[1..] into those of batches[0], all made
+    // with allGradients, for rows [fromRow, toRow), and update the rows by
+    // the sums as Batch.backward() does when it updates.
+    void sumAndUpdate(Batch[] batches, int fromRow, int toRow, double rate, double momentum) {
+        for (int i = fromRow; i < toRow; i++) {
+            if (weights != null) {
+                double[] sum = batches[0].gradients[i];
+                for (int t = 1; t < batches.length; t++) {
+                    double[] gradient = batches[t].gradients[i];
+                    for (int j = 0; j < nodes; j++) {
+                        sum[j] += gradient[j];
+                    }
+                }
+                updateWeights(i * nodes, sum, rate, momentum);
+            } else {
+                float[] sum = batches[0].floatGradients[i];
+                for (int t = 1; t < batches.length; t++) {
+                    float[] gradient = batches[t].floatGradients[i];
+                    for (int j = 0; j < nodes; j++) {
+                        sum[j] += gradient[j];
+                    }
+                }
+                updateFloatWeights(i * nodes, sum, rate, momentum);
+            }
+        }
+    }
+
+    /**
+     * Activations, deltas and gradients of one thread feeding mini batches
+     * through the layer. Several Batches of a layer can work at the same
+     * time, they only share its weights.
+     * 
+     * For a single precision layer the weighted sums and the gradients, the
+     * loops over all the weights, are computed in float, which the JIT
+     * vectorizes twice as wide as double. A weighted sum adds up at most
+     * inputs + 1 products and a gradient batchSize, so float keeps them
+     * within a few units in the 5th digit. The activations and deltas, and
+     * the sums of the deltas of the layer before, stay in double.
+     */
+    class Batch {
+        // Activations and deltas, the derivatives of the error by the
+        // weighted sums of the nodes, of every instance of a mini batch.
+        final double[][] activations;
+        final double[][] deltas;
+        // Copies of a block of rows of weights. A row that is its own array
+        // lets the JIT vectorize the loops over it, which it does not for a
+        // row at an offset of the flat matrix.
+        private final double[][] rows;
+        // Gradients of a block of rows if backward() updates the weights
+        // itself, of every row otherwise.
+        private final double[][] gradients;
+        // rows and gradients of a single precision layer, and the weighted
+        // sums and the deltas of every instance in float.
+        private final float[][] floatRows;
+        private final float[][] floatGradients;
+        private final float[][] floatSums;
+        private final float[][] floatDeltas;
+
+        Batch(int batchSize, boolean allGradients) {
+            this.activations = new double[batchSize][nodes];
+            this.deltas = new double[batchSize][nodes];
+            int gradientRows = allGradients ? inputs + 1 : BLOCK_ROWS;
+            boolean singlePrecision = isSinglePrecision();
+            this.rows = singlePrecision ? null : new double[BLOCK_ROWS][nodes];
+            this.gradients = singlePrecision ? null : new double[gradientRows][nodes];
+            this.floatRows = singlePrecision ? new float[BLOCK_ROWS][nodes] : null;
+            this.floatGradients = singlePrecision ? new float[gradientRows][nodes] : null;
+            this.floatSums = singlePrecision ? new float[batchSize][nodes] : null;
+            this.floatDeltas = singlePrecision ? new float[batchSize][nodes] : null;
+        }
+
+        // activations[b] = f(input[from + b] * weights) for every b < size,
+        // one block of rows of weights at a time.
+        void forward(double[][] input, int from, int size) {
+            for (int b = 0; b < size; b++) {
+                NN.Util.CHECK(input[from + b].length == inputs, "");
+            }
+            if (weights != null) {
+                weightedSums(input, from, size);
+            } else {
+                floatWeightedSums(input, from, size);
+            }
+            for (int b = 0; b < size; b++) {
+                activation.activate(activations[b]);
+            }
+        }
+
+        private void weightedSums(double[][] input, int from, int size) {
+            for (int b = 0; b < size; b++) {
+                System.arraycopy(weights, inputs * nodes, activations[b], 0, nodes);
+            }
+            for (int block = 0; block < inputs; block += BLOCK_ROWS) {
+                int end = Math.min(block + BLOCK_ROWS, inputs);
+                copyRows(block, end);
+                for (int b = 0; b < size; b++) {
+                    double[] x = input[from + b];
+                    double[] output = activations[b];
+                    for (int i = block; i < end; i++) {
+                        double v = x[i];
+                        if (v == 0) {
+                            continue;
+                        }
+                        double[] w = rows[i - block];
+                        for (int j = 0; j < nodes; j++) {
+                            output[j] += v * w[j];
+                        }
+                    }
+                }
+            }
+        }
+
+        private void floatWeightedSums(double[][] input, int from, int size) {
+            for (int b = 0; b < size; b++) {
+                System.arraycopy(floatWeights, inputs * nodes, floatSums[b], 0, nodes);
+            }
+            for (int block = 0; block < inputs; block += BLOCK_ROWS) {
+                int end = Math.min(block + BLOCK_ROWS, inputs);
+                copyRows(block, end);
+                for (int b = 0; b < size; b++) {
+                    double[] x = input[from + b];
+                    float[] output = floatSums[b];
+                    for (int i = block; i < end; i++) {
+                        float v = (float) x[i];
+                        if (v == 0) {
+                            continue;
+                        }
+                        float[] w = floatRows[i - block];
+                        for (int j = 0; j < nodes; j++) {
+                            output[j] += v * w[j];
+                        }
+                    }
+                }
+            }
+            for (int b = 0; b < size; b++) {
+                for (int j = 0; j < nodes; j++) {
+                    activations[b][j] = floatSums[b][j];
+                }
+            }
+        }
+
+        /**
+         * Given deltas of input[from, from + size), set the deltas of
+         * previous, the Batch of the layer input comes from (null for the
+         * first layer), and the gradients of the weights, divided by
+         * divisor. Both happen on one block of rows at a time, and if update
+         * the block is then updated right away. The deltas of previous use
+         * the weights as they were before the update.
+         */
+        void backward(double[][] input, int from, int size, Batch previous, int divisor,
+                boolean update, double rate, double momentum) {
+            if (floatWeights != null) {
+                for (int b = 0; b < size; b++) {
+                    for (int j = 0; j < nodes; j++) {
+                        double delta = deltas[b][j];
+                        floatDeltas[b][j] = Math.abs(delta) < MIN_FLOAT_DELTA ? 0 : (float) delta;
+                    }
+                }
+            }
+            for (int block = 0; block <= inputs; block += BLOCK_ROWS) {
+                int end = Math.min(block + BLOCK_ROWS, inputs + 1);
+                int first = update ? block : 0;
+                if (previous != null) {
+                    Activation f = previous.getLayer().activation;
+                    copyRows(block, end);
+                    for (int b = 0; b < size; b++) {
+                        double[] delta = deltas[b];
+                        double[] h = previous.activations[b];
+                        double[] previousDelta = previous.deltas[b];
+                        for (int i = block; i < end && i < inputs; i++) {
+                            double sum = 0;
+                            if (weights != null) {
+                                double[] w = rows[i - block];
+                                for (int j = 0; j < nodes; j++) {
+                                    sum += delta[j] * w[j];
+                                }
+                            } else {
+                                float[] w = floatRows[i - block];
+                                for (int j = 0; j < nodes; j++) {
+                                    sum += delta[j] * w[j];
+                                }
+                            }
+                            previousDelta[i] = sum * f.derivative(h[i]);
+                        }
+                    }
+                }
+                if (weights != null) {
+                    addGradients(input, from, size, block, end, first, divisor);
+                } else {
+                    addFloatGradients(input, from, size, block, end, first, divisor);
+                }
+                if (update) {
+                    for (int i = block; i < end; i++) {
+                        if (weights != null) {
+                            updateWeights(i * nodes, gradients[i - block], rate, momentum);
+                        } else {
+                            updateFloatWeights(i * nodes, floatGradients[i - block], rate,
+                                    momentum);
+                        }
+                    }
+                }
+            }
+        }
+
+        // gradients[i - first] = sum of input[from + b][i] * deltas[b] /
+        // divisor over b < size, for rows i in [block, end).
+        private void addGradients(double[][] input, int from, int size, int block, int end,
+                int first, int divisor) {
+            for (int i = block; i < end; i++) {
+                Arrays.fill(gradients[i - first], 0);
+            }
+            for (int b = 0; b < size; b++) {
+                double[] instance = input[from + b];
+                double[] delta = deltas[b];
+                for (int i = block; i < end; i++) {
+                    double x = i == inputs ? 1.0 : instance[i];
+                    if (x == 0) {
+                        continue;
+                    }
+                    x /= divisor;
+                    double[] gradient = gradients[i - first];
+                    for (int j = 0; j < nodes; j++) {
+                        gradient[j] += x * delta[j];
+                    }
+                }
+            }
+        }
+
+        private void addFloatGradients(double[][] input, int from, int size, int block, int end,
+                int first, int divisor) {
+            for (int i = block; i < end; i++) {
+                Arrays.fill(floatGradients[i - first], 0);
+            }
+            for (int b = 0; b < size; b++) {
+                double[] instance = input[from + b];
+                float[] delta = floatDeltas[b];
+                for (int i = block; i < end; i++) {
+                    float x = (float) ((i == inputs ? 1.0 : instance[i]) / divisor);
+                    if (x == 0) {
+                        continue;
+                    }
+                    float[] gradient = floatGradients[i - first];
+                    for (int j = 0; j < nodes; j++) {
+                        gradient[j] += x * delta[j];
+                    }
+                }
+            }
+        }
+
+        Layer getLayer() {
+            return Layer.this;
+        }
+
+        // Copy rows [block, end) of weights into rows, or floatRows.
+        private void copyRows(int block, int end) {
+            for (int i = block; i < end; i++) {
+                if (weights != null) {
+                    System.arraycopy(weights, i * nodes, rows[i - block], 0, nodes);
+                } else {
+                    System.arraycopy(floatWeights, i * nodes, floatRows[i - block], 0, nodes);
+                }
+            }
+        }
+    }
+
+    // Update the row of weights from offset on: w -= rate * gradient +
+    // momentum * last gradient.
+    private void updateWeights(int offset, double[] gradient, double rate, double momentum) {
+        for (int j = 0; j < nodes; j++) {
+            int w = offset + j;
+            weights[w] = weights[w] - rate * gradient[j] - momentum * weightsMomentum[w];
+            weightsMomentum[w] = gradient[j];
+        }
+    }
+
+    private void updateFloatWeights(int offset, float[] gradient, double rate, double momentum) {
+        float r = (float) rate;
+        float m = (float) momentum;
+        for (int j = 0; j < nodes; j++) {
+            int w = offset + j;
+            floatWeights[w] = floatWeights[w] - r * gradient[j] - m * floatWeightsMomentum[w];
+            floatWeightsMomentum[w] = gradient[j];
+        }
+    }
+}
@@ -1,7 +1,23 @@
 package faen;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 // http://en.wikipedia.org/wiki/Artificial_neural_network
 // A kind of non linear model of Machine Learning.
@@ -14,154 +30,504 @@ public class NN {
         }
     }
 
-    private int expandedInputNodes;
-    private int hiddenNodes;
-    private int outputNodes;
+    // Relative decrease of the best error that counts as improvement, see
+    // setValidationSet().
+    private static final double MIN_IMPROVEMENT = 1e-3;
 
-    // Weights matrix between input layer and hidden layer
-    private double[][] wi;
-    // Weights matrix between hidden layer and output layer.
-    private double[][] wo;
+    // The hidden layers and the output layer, every layer takes the
+    // activations of the one before as input. Only train() uses them.
+    private final Layer[] layers;
+    // Copies of the layers as the last train() left them, which predicate()
+    // uses. Never changed once published, train() publishes new copies, so
+    // a prediction never sees half updated weights.
+    private volatile Layer[] model;
+    // Seed of the initial weights, null for a different one every train().
+    private Long seed;
+    // See setValidationSet(), null instances for none.
+    private double[][] validationInstances;
+    private double[][] validationTargets;
+    private int patience;
+    // See setCheckpoint(), null for none.
+    private String checkpoint;
 
-    // last change in weights for momentum
-    private double[][] wi_momentum;
-    // last change in weights for momentum
-    private double[][] wo_momentum;
+    // A network with one hidden layer.
+    public NN(int featuresOfInstance, int nodesOfHiddenLayer, int nodesOfOutputLayer) {
+        this(new int[] { featuresOfInstance, nodesOfHiddenLayer, nodesOfOutputLayer });
+    }
 
-    // Expanded instance, whose size is this.outputSize + 1.
-    // The last element will be fixed to 1.0
-    private double[] expandedInstance;
+    /**
+     * A network of dense layers: nodesOfLayers[0] is the number of features
+     * of an instance, the last one the number of outputs and those between
+     * the sizes of the hidden layers. new NN(784, 100, 30, 10) has two hidden
+     * layers.
+     */
+    public NN(int... nodesOfLayers) {
+        this(layersOf(nodesOfLayers));
+    }
 
-    private double[] hiddenActivations;
-    private double[] outputActivations;
+    // A network of the given layers, the inputs of every layer must be the
+    // nodes of the layer before.
+    public NN(Layer... layers) {
+        Util.CHECK(layers.length > 0, "no layers");
+        for (int l = 0; l + 1 < layers.length; l++) {
+            Util.CHECK(layers[l].getActivation() != Activation.SOFTMAX,
+                    "SOFTMAX is for the output layer only");
+        }
+        for (int l = 1; l < layers.length; l++) {
+            Util.CHECK(layers[l].getNumOfInputs() == layers[l - 1].getNumOfNodes(), "layer " + l
+                    + " takes " + layers[l].getNumOfInputs() + " inputs, but layer " + (l - 1)
+                    + " has " + layers[l - 1].getNumOfNodes() + " nodes");
+        }
+        this.layers = layers.clone();
+        publishModel();
+    }
 
-    // The sigmoid function: s(x) = 1 / (1 + (e^-x))
-    // The derivative of s(x): s(x) * (1 - s(x))
-    private double s(double x) {
-        return 1.0 / (1.0 + Math.pow(Math.E, -x));
+    private static Layer[] layersOf(int[] nodesOfLayers) {
+        Util.CHECK(nodesOfLayers.length >= 2, "need at least the input and the output layers");
+        Layer[] layers = new Layer[nodesOfLayers.length - 1];
+        for (int l = 0; l < layers.length; l++) {
+            layers[l] = new Layer(nodesOfLayers[l], nodesOfLayers[l + 1]);
+        }
+        return layers;
     }
 
-    public NN(int featuresOfInstance, int nodesOfHiddenLayer, int nodesOfOutputLayer) {
-        Util.CHECK(featuresOfInstance > 0, "");
-        Util.CHECK(nodesOfHiddenLayer > 0, "");
-        Util.CHECK(nodesOfOutputLayer > 0, "");
-        this.expandedInputNodes = featuresOfInstance + 1;
-        this.hiddenNodes = nodesOfHiddenLayer;
-        this.outputNodes = nodesOfOutputLayer;
-        this.wi = new double[this.expandedInputNodes][this.hiddenNodes];
-        this.wo = new double[this.hiddenNodes][this.outputNodes];
-        this.wi_momentum = new double[this.expandedInputNodes][this.hiddenNodes];
-        this.wo_momentum = new double[this.hiddenNodes][this.outputNodes];
-        this.expandedInstance = new double[this.expandedInputNodes];
-        this.expandedInstance[this.expandedInputNodes - 1] = 1.0;
-        this.hiddenActivations = new double[this.hiddenNodes];
-        this.outputActivations = new double[this.outputNodes];
-    }
-
-    // Randomly initialize the input and output weights matrix
+    // Number of bytes used to keep the weights and their momentum, the
+    // snapshot predicate() uses included.
+    public long getMemorySize() {
+        long size = 0;
+        for (Layer layer : this.layers) {
+            size += layer.getMemorySize();
+        }
+        for (Layer layer : this.model) {
+            size += layer.getMemorySize();
+        }
+        return size;
+    }
+
+    /**
+     * Start every train() from the random weights given by seed, so runs
+     * with different settings can be compared. By default the weights differ
+     * every time.
+     */
+    public synchronized void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Have train() measure the error on a validation set after every
+     * iteration, and stop once it has not improved for patience iterations
+     * in a row. Only an error lower than the best so far by MIN_IMPROVEMENT
+     * of it counts, a network that has converged still gains a little every
+     * iteration. predicate() then uses the weights of the best iteration
+     * instead of the last ones. null instances turn it off.
+     */
+    public synchronized void setValidationSet(double[][] instances, double[][] targets,
+            int patience) {
+        Util.CHECK(instances == null || instances.length == targets.length
+                && instances.length > 0, "");
+        Util.CHECK(instances == null || patience > 0, "");
+        this.validationInstances = instances;
+        this.validationTargets = targets;
+        this.patience = patience;
+    }
+
+    /**
+     * Have train() write its best weights so far, and their momentum, to the
+     * file path: those with the lowest validation error, or the lowest
+     * training error without a validation set. If the file exists when
+     * train() starts, it continues from there instead of from random
+     * weights, so a run that was killed can be run again to resume it. The
+     * iterations of train() count those before the checkpoint too, one that
+     * is already past them runs none. Delete the file to start over. null
+     * turns it off.
+     */
+    public synchronized void setCheckpoint(String path) {
+        this.checkpoint = path;
+    }
+
+    // Randomly initialize the weights of every layer
     private void initializeWeights() {
-        Random rand = new Random();
-        for (int i = 0; i < this.wi.length; i++) {
-            for (int j = 0; j < this.wi[0].length; j++) {
-                // [-2.0, 2.0]
-                this.wi[i][j] = rand.nextDouble() * 4 - 2;
-            }
+        Random rand = this.seed == null ? new Random() : new Random(this.seed);
+        for (Layer layer : this.layers) {
+            layer.initializeWeights(rand);
         }
-        for (int i = 0; i < this.wo.length; i++) {
-            for (int j = 0; j < this.wo[0].length; j++) {
-                // [-2.0, 2.0]
-                this.wo[i][j] = rand.nextDouble() * 4 - 2;
-            }
+    }
+
+    private void publishModel() {
+        this.model = copyWeights();
+    }
+
+    /**
+     * Predicate output from one instance. Safe to call from any number of
+     * threads at once, also while another thread trains: the activations
+     * live in arrays of the call, and the weights are those published by the
+     * last train() to finish.
+     */
+    public double[] predicate(double[] instance) {
+        return forward(this.model, instance);
+    }
+
+    private static double[] forward(Layer[] layers, double[] instance) {
+        Util.CHECK(instance.length == layers[0].getNumOfInputs(), "");
+        double[] input = instance;
+        for (Layer layer : layers) {
+            double[] output = new double[layer.getNumOfNodes()];
+            layer.forward(input, output);
+            input = output;
+        }
+        return input;
+    }
+
+    // Error of the weights of layers on instances, as train() measures it.
+    private static double error(Layer[] layers, double[][] instances, double[][] targets) {
+        Activation activation = layers[layers.length - 1].getActivation();
+        double[] delta = new double[targets[0].length];
+        double error = 0;
+        for (int i = 0; i < instances.length; i++) {
+            error += activation.outputDeltas(forward(layers, instances[i]), targets[i], delta);
         }
+        return error;
+    }
+
+    /**
+     * How train() shares the work among threads.
+     */
+    public enum ParallelMode {
+        // Every mini batch is split among the threads, which compute the
+        // gradients of their share with the same weights. The gradients are
+        // then summed, each thread summing and updating a slice of the rows
+        // of weights, so the weights follow the same steps as with one
+        // thread.
+        SYNCHRONOUS,
+        // Hogwild! (Niu et al., NIPS 2011): every thread trains on its own
+        // share of the instances with its own mini batches, and updates the
+        // shared weights without any locking. Updates of different threads
+        // can overwrite each other, which costs little as long as they
+        // rarely touch the same weights at the same time.
+        HOGWILD
     }
 
-    private void forwardPropagate(double[] instance) {
-        Util.CHECK(instance.length + 1 == this.expandedInputNodes, "");
-        for (int i = 0; i < instance.length; i++) {
-            // Note: the last element of this.expandedInstance will be 1.0
-            this.expandedInstance[i] = instance[i];
+    // What one training thread works on: a Layer.Batch of every layer.
+    private class Worker {
+        private final Layer.Batch[] batches;
+
+        Worker(int batchSize, boolean allGradients) {
+            this.batches = new Layer.Batch[layers.length];
+            for (int l = 0; l < layers.length; l++) {
+                this.batches[l] = layers[l].new Batch(batchSize, allGradients);
+            }
         }
 
-        // forward propagation
-        for (int j = 0; j < this.hiddenNodes; j++) {
-            double tmp = 0;
-            for (int i = 0; i < this.expandedInputNodes; i++) {
-                tmp += this.expandedInstance[i] * this.wi[i][j];
+        // Feed instances[from, to) through every layer as a matrix product,
+        // then send the deltas back from the output layer, each layer
+        // computing the deltas of the one before from its own, so the cost
+        // is linear in the number of weights. The gradients are divided by
+        // divisor, and if update the weights are updated by them. Returns
+        // the error of the instances.
+        double feed(double[][] instances, double[][] targets, int from, int to, int divisor,
+                boolean update, double rate, double momentum) {
+            int size = to - from;
+            // forward propagation
+            batches[0].forward(instances, from, size);
+            for (int l = 1; l < batches.length; l++) {
+                batches[l].forward(batches[l - 1].activations, 0, size);
+            }
+            Layer.Batch output = batches[batches.length - 1];
+            Activation activation = output.getLayer().getActivation();
+            double error = 0;
+            for (int b = 0; b < size; b++) {
+                error += activation.outputDeltas(output.activations[b], targets[from + b],
+                        output.deltas[b]);
             }
-            this.hiddenActivations[j] = s(tmp);
+            // backward propagation
+            for (int l = batches.length - 1; l > 0; l--) {
+                batches[l].backward(batches[l - 1].activations, 0, size, batches[l - 1], divisor,
+                        update, rate, momentum);
+            }
+            batches[0].backward(instances, from, size, null, divisor, update, rate, momentum);
+            return error;
         }
-        for (int k = 0; k < this.outputNodes; k++) {
-            double tmp = 0;
-            for (int j = 0; j < this.hiddenNodes; j++) {
-                tmp += this.hiddenActivations[j] * this.wo[j][k];
+
+        // Update the weights by the mean gradient of every batchSize
+        // consecutive instances of [from, to). Returns their error.
+        double feedAll(double[][] instances, double[][] targets, int from, int to,
+                int batchSize, double rate, double momentum) {
+            double error = 0;
+            for (int index = from; index < to; index += batchSize) {
+                int end = Math.min(index + batchSize, to);
+                error += feed(instances, targets, index, end, end - index, true, rate, momentum);
             }
-            this.outputActivations[k] = s(tmp);
+            return error;
         }
     }
 
-    // Predicate output from one instance.
-    public double[] predicate(double[] instance) {
-        forwardPropagate(instance);
-        return this.outputActivations.clone();
+    // Train the NN
+    public synchronized void train(double[][] instances, double[][] targets, int iterations,
+            double rate, double momentum) {
+        train(instances, targets, iterations, rate, momentum, 1);
     }
 
-    // Update NN weights by one instance and its label.
-    private double feedOneInstance(double[] instance, double[] target, double rate, double momentum) {
-        forwardPropagate(instance);
-        double error = 0;
-        for (int k = 0; k < this.outputNodes; k++) {
-            error += 0.5 * (target[k] - this.outputActivations[k])
-                    * (target[k] - this.outputActivations[k]);
-        }
-
-        // backward propagation
-        // update output weights matrix
-        for (int j = 0; j < this.hiddenNodes; j++) {
-            for (int k = 0; k < this.outputNodes; k++) {
-                // wo[j,k]
-                double change = (this.outputActivations[k] - target[k]) * this.outputActivations[k]
-                        * (1 - this.outputActivations[k]);
-                change *= this.hiddenActivations[j];
-                this.wo[j][k] = this.wo[j][k] - rate * change - momentum * this.wo_momentum[j][k];
-                this.wo_momentum[j][k] = change;
-            }
-        }
-        // update input weights matrix
-        for (int i = 0; i < this.expandedInputNodes; i++) {
-            for (int j = 0; j < this.hiddenNodes; j++) {
-                // wi[i, j]
-                double change = 0;
-                for (int k = 0; k < this.outputNodes; k++) {
-                    change += (this.outputActivations[k] - target[k]) * this.outputActivations[k]
-                            * (1 - this.outputActivations[k]) * this.wo[j][k];
+    /**
+     * Train the NN with mini batches: the weights are updated by the mean
+     * gradient of every batchSize consecutive instances. 1 updates them after
+     * every instance, as train() without batchSize does. Larger batches read
+     * the weights once per batch instead of once per instance, but make fewer
+     * updates per iteration, so they usually need a higher rate.
+     */
+    public synchronized void train(double[][] instances, double[][] targets, int iterations,
+            double rate, double momentum, int batchSize) {
+        train(instances, targets, iterations, rate, momentum, batchSize,
+                ParallelMode.SYNCHRONOUS, 1, 0);
+    }
+
+    /**
+     * Train the NN with mini batches of batchSize on parallelism threads.
+     * 
+     * @param mode
+     *            how the threads share the work, see ParallelMode. With
+     *            SYNCHRONOUS, a batch is split into parallelism shares, so it
+     *            should be several times larger than parallelism. With
+     *            HOGWILD, every thread makes its own mini batches of
+     *            batchSize.
+     * @param targetError
+     *            training stops after the first iteration whose error, summed
+     *            over the instances, is below it. 0 runs all iterations. The
+     *            error is the squared error, or the cross entropy for a
+     *            SOFTMAX output layer.
+     * @return the number of iterations run, those before a checkpoint
+     *         included, at most iterations. See setValidationSet() and
+     *         setCheckpoint() for early stopping and resuming.
+     */
+    public synchronized int train(double[][] instances, double[][] targets, int iterations,
+            double rate, double momentum, int batchSize, ParallelMode mode, int parallelism,
+            double targetError) {
+        Util.CHECK(instances.length == targets.length && targets.length > 0, "");
+        Util.CHECK(instances[0].length > 0, "");
+        Util.CHECK(targets[0].length == this.layers[this.layers.length - 1].getNumOfNodes(), "");
+        Util.CHECK(batchSize > 0, "");
+        Util.CHECK(parallelism > 0, "");
+        boolean validate = this.validationInstances != null;
+        Util.CHECK(!validate || this.validationInstances[0].length == instances[0].length
+                && this.validationTargets[0].length == targets[0].length, "");
+        int it = 0;
+        // Best validation error, or training error without validation, and a
+        // copy of the weights it was reached with if validate.
+        double bestError = Double.POSITIVE_INFINITY;
+        Layer[] best = null;
+        if (this.checkpoint != null && new File(this.checkpoint).exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(this.checkpoint)))) {
+                // A checkpoint past iterations leaves nothing to run.
+                it = Math.min(in.readInt(), iterations);
+                bestError = in.readDouble();
+                Util.CHECK(in.readInt() == this.layers.length, "checkpoint " + this.checkpoint
+                        + " is of another network");
+                for (Layer layer : this.layers) {
+                    layer.read(in);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (validate) {
+                best = copyWeights();
+            }
+        } else {
+            initializeWeights();
+        }
+        int sinceBest = 0;
+        boolean synchronous = mode == ParallelMode.SYNCHRONOUS && parallelism > 1;
+        Worker[] workers = new Worker[parallelism];
+        for (int t = 0; t < parallelism; t++) {
+            workers[t] = synchronous ? new Worker((batchSize + parallelism - 1) / parallelism,
+                    true) : new Worker(batchSize, false);
+        }
+        ExecutorService pool = parallelism > 1 ? Executors.newFixedThreadPool(parallelism) : null;
+        try {
+            while (it < iterations) {
+                double error;
+                if (parallelism == 1) {
+                    error = workers[0].feedAll(instances, targets, 0, instances.length, batchSize,
+                            rate, momentum);
+                } else if (synchronous) {
+                    error = trainSynchronously(pool, workers, instances, targets, batchSize, rate,
+                            momentum);
+                } else {
+                    error = trainHogwild(pool, workers, instances, targets, batchSize, rate,
+                            momentum);
+                }
+                double monitoredError = validate ? error(this.layers, this.validationInstances,
+                        this.validationTargets) : error;
+                if (it++ % 20 == 0) {
+                    System.out.println("error: " + error
+                            + (validate ? ", validation error: " + monitoredError : ""));
+                }
+                if (monitoredError < bestError * (1 - MIN_IMPROVEMENT)) {
+                    bestError = monitoredError;
+                    sinceBest = 0;
+                    if (validate) {
+                        best = copyWeights();
+                    }
+                    if (this.checkpoint != null) {
+                        writeCheckpoint(it, bestError);
+                    }
+                } else if (validate && ++sinceBest >= this.patience) {
+                    break;
+                }
+                if (error < targetError) {
+                    break;
+                }
+            }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        if (best != null) {
+            this.model = best;
+        } else {
+            publishModel();
+        }
+        return it;
+    }
+
+    // Copies of the weights of the layers.
+    private Layer[] copyWeights() {
+        Layer[] copy = new Layer[this.layers.length];
+        for (int l = 0; l < copy.length; l++) {
+            copy[l] = this.layers[l].copyWeights();
+        }
+        return copy;
+    }
 
+    // Write the layers as they are after iteration iterations to the
+    // checkpoint file. The file is written aside and then moved over the old
+    // one, so a run killed while writing still leaves a whole checkpoint.
+    private void writeCheckpoint(int iteration, double error) {
+        File file = new File(this.checkpoint);
+        File temp = new File(this.checkpoint + ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)))) {
+                out.writeInt(iteration);
+                out.writeDouble(error);
+                out.writeInt(this.layers.length);
+                for (Layer layer : this.layers) {
+                    layer.write(out);
                 }
-                change *= this.hiddenActivations[j] * (1 - this.hiddenActivations[j]);
-                change *= this.expandedInstance[i];
-                this.wi[i][j] = this.wi[i][j] - rate * change - momentum * this.wi_momentum[i][j];
-                this.wi_momentum[i][j] = change;
             }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // One iteration of ParallelMode.SYNCHRONOUS, returns its error.
+    private double trainSynchronously(ExecutorService pool, final Worker[] workers,
+            final double[][] instances, final double[][] targets, int batchSize,
+            final double rate, final double momentum) {
+        final int parallelism = workers.length;
+        int numOfRows = 0;
+        for (Layer layer : this.layers) {
+            numOfRows += layer.getNumOfInputs() + 1;
+        }
+        final double[] errors = new double[parallelism];
+        Runnable[] tasks = new Runnable[parallelism];
+        double error = 0;
+        for (int index = 0; index < instances.length; index += batchSize) {
+            final int from = index;
+            final int size = Math.min(index + batchSize, instances.length) - index;
+            for (int t = 0; t < parallelism; t++) {
+                final int worker = t;
+                tasks[t] = new Runnable() {
+                    @Override
+                    public void run() {
+                        errors[worker] = workers[worker].feed(instances, targets, from + size
+                                * worker / parallelism, from + size * (worker + 1) / parallelism,
+                                size, false, rate, momentum);
+                    }
+                };
+            }
+            runInParallel(pool, tasks);
+            for (int t = 0; t < parallelism; t++) {
+                error += errors[t];
+                final int fromRow = (int) ((long) numOfRows * t / parallelism);
+                final int toRow = (int) ((long) numOfRows * (t + 1) / parallelism);
+                tasks[t] = new Runnable() {
+                    @Override
+                    public void run() {
+                        sumAndUpdate(workers, fromRow, toRow, rate, momentum);
+                    }
+                };
+            }
+            runInParallel(pool, tasks);
         }
         return error;
     }
 
-    // Train the NN
-    public void train(double[][] instances, double[][] targets, int iterations, double rate,
+    // Add the gradients of all workers into those of workers[0] and update
+    // the weights by them, for rows [fromRow, toRow) of the rows of all
+    // layers one after another.
+    private void sumAndUpdate(Worker[] workers, int fromRow, int toRow, double rate,
             double momentum) {
-        Util.CHECK(instances.length == targets.length && targets.length > 0, "");
-        Util.CHECK(instances[0].length > 0, "");
-        Util.CHECK(targets[0].length == this.outputNodes, "");
-        initializeWeights();
-        for (int it = 0; it < iterations; it++) {
-            double error = 0;
-            for (int index = 0; index < instances.length; index++) {
-                double[] instance = instances[index];
-                double[] target = targets[index];
-                error += feedOneInstance(instance, target, rate, momentum);
+        int first = 0;
+        for (int l = 0; l < this.layers.length; l++) {
+            int numOfRows = this.layers[l].getNumOfInputs() + 1;
+            int from = Math.max(fromRow - first, 0);
+            int to = Math.min(toRow - first, numOfRows);
+            first += numOfRows;
+            if (from >= to) {
+                continue;
             }
-            if (it % 20 == 0) {
-                System.out.println("error: " + error);
+            Layer.Batch[] batches = new Layer.Batch[workers.length];
+            for (int t = 0; t < workers.length; t++) {
+                batches[t] = workers[t].batches[l];
             }
+            this.layers[l].sumAndUpdate(batches, from, to, rate, momentum);
+        }
+    }
+
+    // One iteration of ParallelMode.HOGWILD, returns its error.
+    private double trainHogwild(ExecutorService pool, final Worker[] workers,
+            final double[][] instances, final double[][] targets, final int batchSize,
+            final double rate, final double momentum) {
+        final int parallelism = workers.length;
+        final double[] errors = new double[parallelism];
+        Runnable[] tasks = new Runnable[parallelism];
+        for (int t = 0; t < parallelism; t++) {
+            final int worker = t;
+            final int from = (int) ((long) instances.length * t / parallelism);
+            final int to = (int) ((long) instances.length * (t + 1) / parallelism);
+            tasks[t] = new Runnable() {
+                @Override
+                public void run() {
+                    errors[worker] = workers[worker].feedAll(instances, targets, from, to,
+                            batchSize, rate, momentum);
+                }
+            };
+        }
+        runInParallel(pool, tasks);
+        double error = 0;
+        for (double e : errors) {
+            error += e;
+        }
+        return error;
+    }
+
+    private static void runInParallel(ExecutorService pool, Runnable[] tasks) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(tasks.length);
+        for (Runnable task : tasks) {
+            futures.add(pool.submit(task));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
         }
     }
 
@@ -219,7 +585,173 @@ public class NN {
         }
     }
 
+    // Fill instances with 28 * 28 bitmaps of random "digits", each a random
+    // prototype with 10% of its pixels flipped, and targets with the one hot
+    // encoded digits.
+    static void randomDigits(Random rand, double[][] instances, double[][] targets) {
+        double[][] prototypes = new double[10][28 * 28];
+        for (double[] prototype : prototypes) {
+            for (int i = 0; i < prototype.length; i++) {
+                prototype[i] = rand.nextDouble() < 0.2 ? 1 : 0;
+            }
+        }
+        for (int index = 0; index < instances.length; index++) {
+            int digit = rand.nextInt(10);
+            instances[index] = prototypes[digit].clone();
+            for (int i = 0; i < instances[index].length; i++) {
+                if (rand.nextDouble() < 0.1) {
+                    instances[index][i] = 1 - instances[index][i];
+                }
+            }
+            targets[index] = new double[10];
+            targets[index][digit] = 1;
+        }
+    }
+
+    // Index of the largest output.
+    static int argMax(double[] output) {
+        int best = 0;
+        for (int k = 1; k < output.length; k++) {
+            if (output[k] > output[best]) {
+                best = k;
+            }
+        }
+        return best;
+    }
+
+    // Training throughput of 784 input networks, 784-10-10 is the shape of
+    // neural_network/Main, on random digit like bitmaps, the time parallel
+    // training takes to reach a training error, double against single
+    // precision, and early stopping.
+    private static void benchmark() {
+        int m = 3000;
+        double[][] instances = new double[m + 2000][];
+        double[][] targets = new double[m + 2000][];
+        randomDigits(new Random(1), instances, targets);
+        double[][] testInstances = Arrays.copyOfRange(instances, m, m + 1000);
+        double[][] testTargets = Arrays.copyOfRange(targets, m, m + 1000);
+        double[][] validationInstances = Arrays.copyOfRange(instances, m + 1000, m + 2000);
+        double[][] validationTargets = Arrays.copyOfRange(targets, m + 1000, m + 2000);
+        instances = Arrays.copyOf(instances, m);
+        targets = Arrays.copyOf(targets, m);
+        int iterations = 21;
+        int[][] shapes = new int[][] { { 28 * 28, 10, 10 }, { 28 * 28, 100, 10 },
+                { 28 * 28, 100, 30, 10 } };
+        for (int[] shape : shapes) {
+            StringBuilder name = new StringBuilder();
+            for (int nodes : shape) {
+                name.append(name.length() == 0 ? "" : "-").append(nodes);
+            }
+            for (int batchSize : new int[] { 1, 8, 32, 128 }) {
+                NN nn = new NN(shape);
+                long start = System.nanoTime();
+                nn.train(instances, targets, iterations, batchSize == 1 ? 1.5 : 3.0, 0.2,
+                        batchSize);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(name + ", batch size " + batchSize + ": "
+                        + (long) (1.0 * m * iterations / seconds) + " samples/sec");
+            }
+        }
+        // Time for 784-100-10 to bring the training error below targetError
+        // with batches of 32, with every ParallelMode, from the same initial
+        // weights.
+        double targetError = 200;
+        int maxIterations = 200;
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+        for (ParallelMode mode : ParallelMode.values()) {
+            for (int parallelism : new int[] { 1, 4, 16 }) {
+                NN nn = new NN(28 * 28, 100, 10);
+                nn.setSeed(2);
+                long start = System.nanoTime();
+                int its = nn.train(instances, targets, maxIterations, 3.0, 0.2, 32, mode,
+                        parallelism, targetError);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(mode + ", " + parallelism + " threads: error "
+                        + (its < maxIterations ? "below " : "not below ") + targetError
+                        + " after " + its + " iterations, " + seconds + " sec");
+            }
+        }
+        benchmarkPrecision(instances, targets, testInstances, testTargets);
+        benchmarkEarlyStopping(instances, targets, testInstances, testTargets,
+                validationInstances, validationTargets);
+    }
+
+    // Double against single precision weights, for 784-100-10 trained from
+    // the same initial weights.
+    private static void benchmarkPrecision(double[][] instances, double[][] targets,
+            double[][] testInstances, double[][] testTargets) {
+        for (int batchSize : new int[] { 1, 32 }) {
+            for (boolean singlePrecision : new boolean[] { false, true }) {
+                NN nn = new NN(new Layer(28 * 28, 100, Activation.SIGMOID, singlePrecision),
+                        new Layer(100, 10, Activation.SIGMOID, singlePrecision));
+                nn.setSeed(2);
+                long start = System.nanoTime();
+                nn.train(instances, targets, 30, batchSize == 1 ? 1.5 : 3.0, 0.2, batchSize);
+                double trainSeconds = (System.nanoTime() - start) / 1e9;
+                int correct = 0;
+                start = System.nanoTime();
+                for (int round = 0; round < 10; round++) {
+                    for (int i = 0; i < testInstances.length; i++) {
+                        if (argMax(nn.predicate(testInstances[i])) == argMax(testTargets[i])) {
+                            correct++;
+                        }
+                    }
+                }
+                double testSeconds = (System.nanoTime() - start) / 1e9;
+                System.out.println((singlePrecision ? "float" : "double") + ", batch size "
+                        + batchSize + ": " + nn.getMemorySize() + " bytes, training "
+                        + (long) (30.0 * instances.length / trainSeconds) + " samples/sec, "
+                        + "predicate " + (long) (10.0 * testInstances.length / testSeconds)
+                        + " instances/sec, test accuracy " + correct / 10.0
+                        / testInstances.length);
+            }
+        }
+    }
+
+    // 784-100-10 trained for 300 iterations, with and without early stopping,
+    // then a run stopped after 30 iterations and resumed from its checkpoint.
+    private static void benchmarkEarlyStopping(double[][] instances, double[][] targets,
+            double[][] testInstances, double[][] testTargets, double[][] validationInstances,
+            double[][] validationTargets) {
+        File checkpoint;
+        try {
+            checkpoint = File.createTempFile("benchmark", ".nn");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        checkpoint.delete();
+        String[] runs = new String[] { "no early stopping", "patience 5", "stopped at 30",
+                "resumed" };
+        for (int run = 0; run < runs.length; run++) {
+            NN nn = new NN(28 * 28, 100, 10);
+            nn.setSeed(2);
+            if (run > 0) {
+                nn.setValidationSet(validationInstances, validationTargets, 5);
+            }
+            if (run > 1) {
+                nn.setCheckpoint(checkpoint.getPath());
+            }
+            long start = System.nanoTime();
+            int its = nn.train(instances, targets, run == 2 ? 30 : 300, 3.0, 0.2, 32,
+                    ParallelMode.SYNCHRONOUS, 1, 0);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int correct = 0;
+            for (int i = 0; i < testInstances.length; i++) {
+                if (argMax(nn.predicate(testInstances[i])) == argMax(testTargets[i])) {
+                    correct++;
+                }
+            }
+            System.out.println(runs[run] + ": " + its + " iterations, " + seconds
+                    + " sec, test accuracy " + (double) correct / testInstances.length);
+        }
+        checkpoint.delete();
+    }
+
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("benchmark")) {
+            benchmark();
+            return;
+        }
         demo1();
         System.out.println("-----------------------------------------");
         demo2();
@@ -0,0 +1,119 @@
+package faen;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// A trained RandomForest flattened into parallel primitive arrays for fast
+// prediction. Nodes of every tree are laid out breadth first and the two
+// children of a node are next to each other, so a node only keeps the index
+// of its left child, and the walk from root to leaf is a loop without
+// recursion or pointer chasing. Use RandomForest.compile() to create one.
+public class CompiledForest implements ForestPredictor {
+    // Index of the root node of every tree.
+    final int[] roots_;
+    // Feature compared at every node, -1 for leaf nodes.
+    final int[] feature_;
+    // Instances with feature value <= threshold go to the left child.
+    final double[] threshold_;
+    // Index of the left child (the right one is next to it) for split nodes,
+    // index of the class in classes_ for leaf nodes.
+    final int[] child_;
+    // Sorted class labels.
+    final int[] classes_;
+
+    CompiledForest(int[] roots, int[] feature, double[] threshold, int[] child, int[] classes) {
+        RandomForest.Util.CHECK(feature.length == threshold.length
+                && feature.length == child.length, "");
+        this.roots_ = roots;
+        this.feature_ = feature;
+        this.threshold_ = threshold;
+        this.child_ = child;
+        this.classes_ = classes;
+    }
+
+    @Override
+    public int getNumOfTrees() {
+        return roots_.length;
+    }
+
+    public int getNumOfNodes() {
+        return feature_.length;
+    }
+
+    // Get the index in classes_ of the leaf the instance reaches in one tree.
+    private int predicateByOneTree(int tree, double[] instance) {
+        int node = roots_[tree];
+        int featureIndex;
+        while ((featureIndex = feature_[node]) >= 0) {
+            node = child_[node] + (instance[featureIndex] > threshold_[node] ? 1 : 0);
+        }
+        return child_[node];
+    }
+
+    // Predicate one instance, see Votes.
+    @Override
+    public int predicate(double[] instance) {
+        int[] votes = new int[classes_.length];
+        int bestClass = -1;
+        for (int tree = 0; tree < roots_.length; tree++) {
+            bestClass = Votes.add(votes, predicateByOneTree(tree, instance), bestClass);
+        }
+        return classes_[bestClass];
+    }
+
+    /**
+     * Save the forest in the binary model format, which MappedForest.open()
+     * serves without copying and load() reads back. All numbers are big
+     * endian:
+     * 
+     * <pre>
+     * int     MAGIC, VERSION
+     * int     number of classes, trees and nodes
+     * int[]   classes, roots, feature, child
+     * int     0, only if needed to align threshold to 8 bytes
+     * double[] threshold
+     * </pre>
+     */
+    public void save(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(classes_.length);
+            out.writeInt(roots_.length);
+            out.writeInt(feature_.length);
+            writeInts(out, classes_);
+            writeInts(out, roots_);
+            writeInts(out, feature_);
+            writeInts(out, child_);
+            if (out.size() % 8 != 0) {
+                out.writeInt(0);
+            }
+            for (double v : threshold_) {
+                out.writeDouble(v);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int v : values) {
+            out.writeInt(v);
+        }
+    }
+
+    // Load a forest written by save() into heap arrays.
+    public static CompiledForest load(File file) throws IOException {
+        MappedForest mapped = MappedForest.open(file);
+        return mapped.toCompiledForest();
+    }
+
+    // "RFOR"
+    static final int MAGIC = 0x52464F52;
+    static final int VERSION = 1;
+}
@@ -0,0 +1,223 @@
+package faen;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Training instances for RandomForest, stored column by column. Besides
+ * wrapping a plain double[][], features can be encoded compactly:
+ * 
+ * <ul>
+ * <li>binary(): 0/1 features packed into bits, 64 times smaller than double.
+ * <li>quantized(): every feature mapped to at most maxBins bins kept in a
+ * byte (up to 256 bins) or a short, 8 or 4 times smaller than double.
+ * </ul>
+ * 
+ * Both can keep their columns off the Java heap. A column is contiguous, so
+ * scanning a feature over many instances reads memory sequentially.
+ * 
+ * Only the stored values shrink, not what a tree needs while it is built.
+ * RandomForest.SplitMode.EXHAUSTIVE can keep the sampled rows presorted by
+ * every feature, 4 bytes per feature and sampled row in every tree being
+ * built, half of what a double[][] takes. It does so only while the orders
+ * fit a fixed budget and beat sorting the candidate features at each node,
+ * which needs 12 bytes per sampled row. EXTRA_TREES and LEVEL_WISE keep no
+ * per-feature copies, so with them training memory shrinks with the store.
+ */
+public abstract class FeatureStore {
+    protected final int numOfInstances_;
+    protected final int numOfFeatures_;
+
+    protected FeatureStore(int numOfInstances, int numOfFeatures) {
+        this.numOfInstances_ = numOfInstances;
+        this.numOfFeatures_ = numOfFeatures;
+    }
+
+    public int getNumOfInstances() {
+        return numOfInstances_;
+    }
+
+    public int getNumOfFeatures() {
+        return numOfFeatures_;
+    }
+
+    // Get the value of feature featureIndex of instance instanceIndex.
+    public abstract double get(int instanceIndex, int featureIndex);
+
+    // Number of bytes used to keep the feature values.
+    public abstract long getMemorySize();
+
+    // Copy all features of one instance into instance.
+    public void getInstance(int instanceIndex, double[] instance) {
+        for (int featureIndex = 0; featureIndex < numOfFeatures_; featureIndex++) {
+            instance[featureIndex] = get(instanceIndex, featureIndex);
+        }
+    }
+
+    // Wrap instances as they are, nothing is copied.
+    public static FeatureStore of(double[][] instances) {
+        return new RowStore(instances);
+    }
+
+    // Pack features whose values are all 0 or 1 into bits.
+    public static FeatureStore binary(double[][] instances, boolean offHeap) {
+        return new BitStore(instances, offHeap);
+    }
+
+    /**
+     * Map every feature to at most maxBins bins. A bin is represented by the
+     * largest value falling into it, so splits learnt on the store compare raw
+     * values the same way. Features with at most maxBins distinct values are
+     * kept exactly.
+     */
+    public static FeatureStore quantized(double[][] instances, int maxBins, boolean offHeap) {
+        RandomForest.Util.CHECK(maxBins > 1 && maxBins <= 65536, "maxBins should be in [2, 65536]");
+        return new BinStore(instances, maxBins, offHeap);
+    }
+
+    // Get the largest value of every bin of values, which gets sorted. Bins
+    // hold about the same number of values, at most maxBins of them.
+    static double[] getBinEdges(double[] values, int maxBins) {
+        Arrays.sort(values);
+        double[] distinct = new double[values.length];
+        int numOfDistinct = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (i == 0 || values[i] != values[i - 1]) {
+                distinct[numOfDistinct++] = values[i];
+            }
+        }
+        if (numOfDistinct <= maxBins) {
+            return Arrays.copyOf(distinct, numOfDistinct);
+        }
+        double[] edges = new double[maxBins];
+        int numOfEdges = 0;
+        for (int b = 1; b <= maxBins; b++) {
+            double edge = values[(int) ((long) values.length * b / maxBins) - 1];
+            if (numOfEdges == 0 || edge != edges[numOfEdges - 1]) {
+                edges[numOfEdges++] = edge;
+            }
+        }
+        return Arrays.copyOf(edges, numOfEdges);
+    }
+
+    private static int featuresOf(double[][] instances) {
+        RandomForest.Util.CHECK(instances.length > 0, "no instances");
+        return instances[0].length;
+    }
+
+    // The row major double[][] the other constructors take.
+    private static class RowStore extends FeatureStore {
+        private final double[][] instances_;
+
+        RowStore(double[][] instances) {
+            super(instances.length, featuresOf(instances));
+            this.instances_ = instances;
+        }
+
+        @Override
+        public double get(int instanceIndex, int featureIndex) {
+            return instances_[instanceIndex][featureIndex];
+        }
+
+        @Override
+        public long getMemorySize() {
+            return 8L * numOfInstances_ * numOfFeatures_;
+        }
+    }
+
+    // One bit per value, every column padded to whole longs.
+    private static class BitStore extends FeatureStore {
+        private final int longsPerColumn_;
+        private final LongBuffer bits_;
+
+        BitStore(double[][] instances, boolean offHeap) {
+            super(instances.length, featuresOf(instances));
+            this.longsPerColumn_ = (numOfInstances_ + 63) >>> 6;
+            this.bits_ = allocate(8L * longsPerColumn_ * numOfFeatures_, offHeap).asLongBuffer();
+            for (int featureIndex = 0; featureIndex < numOfFeatures_; featureIndex++) {
+                int column = featureIndex * longsPerColumn_;
+                for (int i = 0; i < numOfInstances_; i++) {
+                    double v = instances[i][featureIndex];
+                    RandomForest.Util.CHECK(v == 0 || v == 1, "not a binary feature: " + v);
+                    if (v == 1) {
+                        int index = column + (i >>> 6);
+                        bits_.put(index, bits_.get(index) | (1L << (i & 63)));
+                    }
+                }
+            }
+        }
+
+        @Override
+        public double get(int instanceIndex, int featureIndex) {
+            long word = bits_.get(featureIndex * longsPerColumn_ + (instanceIndex >>> 6));
+            return (word >>> (instanceIndex & 63)) & 1L;
+        }
+
+        @Override
+        public long getMemorySize() {
+            return 8L * bits_.capacity();
+        }
+    }
+
+    // Bin index per value, in a byte if there are at most 256 bins, in a
+    // short otherwise.
+    private static class BinStore extends FeatureStore {
+        // binValues_[f][b] is the value bin b of feature f stands for.
+        private final double[][] binValues_;
+        private final ByteBuffer bytes_;
+        private final ShortBuffer shorts_;
+
+        BinStore(double[][] instances, int maxBins, boolean offHeap) {
+            super(instances.length, featuresOf(instances));
+            this.binValues_ = new double[numOfFeatures_][];
+            long size = (long) numOfInstances_ * numOfFeatures_;
+            if (maxBins <= 256) {
+                this.bytes_ = allocate(size, offHeap);
+                this.shorts_ = null;
+            } else {
+                this.bytes_ = null;
+                this.shorts_ = allocate(2 * size, offHeap).asShortBuffer();
+            }
+            double[] column = new double[numOfInstances_];
+            for (int featureIndex = 0; featureIndex < numOfFeatures_; featureIndex++) {
+                for (int i = 0; i < numOfInstances_; i++) {
+                    column[i] = instances[i][featureIndex];
+                }
+                double[] edges = getBinEdges(column.clone(), maxBins);
+                binValues_[featureIndex] = edges;
+                int offset = featureIndex * numOfInstances_;
+                for (int i = 0; i < numOfInstances_; i++) {
+                    // The first bin whose largest value is >= the value.
+                    int bin = Arrays.binarySearch(edges, column[i]);
+                    if (bin < 0) {
+                        bin = -bin - 1;
+                    }
+                    if (bytes_ != null) {
+                        bytes_.put(offset + i, (byte) bin);
+                    } else {
+                        shorts_.put(offset + i, (short) bin);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public double get(int instanceIndex, int featureIndex) {
+            int index = featureIndex * numOfInstances_ + instanceIndex;
+            int bin = bytes_ != null ? bytes_.get(index) & 0xFF : shorts_.get(index) & 0xFFFF;
+            return binValues_[featureIndex][bin];
+        }
+
+        @Override
+        public long getMemorySize() {
+            return bytes_ != null ? bytes_.capacity() : 2L * shorts_.capacity();
+        }
+    }
+
+    private static ByteBuffer allocate(long size, boolean offHeap) {
+        RandomForest.Util.CHECK(size <= Integer.MAX_VALUE, "too many values for one store");
+        return offHeap ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+    }
+}
@@ -0,0 +1,41 @@
+package faen;
+
+import java.io.File;
+import java.io.IOException;
+
+// A trained forest that can predicate, whatever engine walks its trees.
+public interface ForestPredictor {
+    // Predicate one instance, every engine gives the same answer for a model.
+    int predicate(double[] instance);
+
+    int getNumOfTrees();
+
+    // Ways to serve a model saved by RandomForest.save().
+    public enum Engine {
+        // RandomForest, TreeNode objects linked by pointers.
+        POINTER,
+        // CompiledForest, breadth first node arrays on the heap.
+        COMPILED,
+        // MappedForest, the node arrays read from the memory mapped file.
+        MAPPED,
+        // QuickScorer, all trees at once feature by feature with leaf bit
+        // masks. Only for trees of at most 64 leaves.
+        QUICK_SCORER
+    }
+
+    // Load a model saved by RandomForest.save() for the given engine.
+    public static ForestPredictor load(File file, Engine engine) throws IOException {
+        switch (engine) {
+        case POINTER:
+            return RandomForest.load(file);
+        case COMPILED:
+            return CompiledForest.load(file);
+        case MAPPED:
+            return MappedForest.open(file);
+        case QUICK_SCORER:
+            return new QuickScorer(CompiledForest.load(file));
+        default:
+            throw new RuntimeException("unknown engine: " + engine);
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package faen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Multi-class gradient boosted regression trees with the softmax loss, trained
+ * on the same instances and targets as RandomForest. Every round adds one tree
+ * per class, fitted by a Newton step to the gradients of the current scores.
+ *
+ * Features are mapped once to at most MAX_BINS quantile bins, see
+ * FeatureStore.getBinEdges(), and splits are found from histograms of the
+ * gradients per bin. Of the two children of a split only the smaller one gets
+ * its histogram built from its instances, the other one is the histogram of
+ * the parent minus it. Building a histogram is split by feature among
+ * parallelism threads.
+ */
+public class GradientBoosting implements ForestPredictor {
+    // At most 256 bins, so that a bin index fits in a byte.
+    static final int MAX_BINS = 256;
+    // L2 penalty on the leaf values.
+    private static final double L2_REGULARIZATION = 1;
+    // Smallest sum of hessians a child of a split may have.
+    private static final double MIN_CHILD_HESSIAN = 1;
+    // Histograms of nodes with fewer (instance, feature) pairs than this are
+    // built on one thread.
+    private static final long MIN_PARALLEL_WORK = 1 << 16;
+
+    private volatile Model model_;
+
+    // What predictions are made with, replaced as a whole by train().
+    private static class Model {
+        // Sorted distinct labels of the training targets.
+        final int[] classes_;
+        // Score every class starts from, the log of its share of the targets.
+        final double[] baseScores_;
+        // trees_[round * classes_.length + c] adds to the score of class c.
+        final Tree[] trees_;
+
+        Model(int[] classes, double[] baseScores, Tree[] trees) {
+            this.classes_ = classes;
+            this.baseScores_ = baseScores;
+            this.trees_ = trees;
+        }
+    }
+
+    // A regression tree in flat arrays. Node 0 is the root, the children of a
+    // split node n are child_[n] and child_[n] + 1, a leaf has feature -1.
+    private static class Tree {
+        final int[] feature_;
+        final double[] threshold_;
+        final int[] child_;
+        final double[] value_;
+
+        Tree(int[] feature, double[] threshold, int[] child, double[] value) {
+            this.feature_ = feature;
+            this.threshold_ = threshold;
+            this.child_ = child;
+            this.value_ = value;
+        }
+
+        double predicate(double[] instance) {
+            int node = 0;
+            while (feature_[node] >= 0) {
+                node = instance[feature_[node]] <= threshold_[node] ? child_[node]
+                        : child_[node] + 1;
+            }
+            return value_[node];
+        }
+    }
+
+    // Train with one thread per available processor.
+    public void train(double[][] instances, int[] targets, int numOfRounds, int maxDepth,
+            double learningRate) {
+        train(FeatureStore.of(instances), targets, numOfRounds, maxDepth, learningRate, Runtime
+                .getRuntime().availableProcessors());
+    }
+
+    /**
+     * Train the model, the previous one keeps serving predictions until done.
+     *
+     * @param numOfRounds
+     *            every round adds one tree per class.
+     * @param maxDepth
+     *            levels of splits of a tree, a tree has at most 2^maxDepth
+     *            leaves.
+     * @param learningRate
+     *            every tree's leaf values are scaled by it, usually 0.05 to
+     *            0.3.
+     * @param parallelism
+     *            number of threads building histograms.
+     */
+    public void train(FeatureStore data, int[] targets, int numOfRounds, int maxDepth,
+            double learningRate, int parallelism) {
+        RandomForest.Util.CHECK(data.getNumOfInstances() == targets.length, "");
+        RandomForest.Util.CHECK(numOfRounds > 0 && parallelism > 0, "");
+        RandomForest.Util.CHECK(maxDepth > 0 && maxDepth < 24, "maxDepth should be in [1, 23]");
+        Trainer trainer = new Trainer(data, targets, maxDepth, learningRate, parallelism);
+        try {
+            model_ = trainer.train(numOfRounds);
+        } finally {
+            trainer.pool_.shutdownNow();
+        }
+    }
+
+    // The state of one train() call.
+    private static class Trainer {
+        private final int numOfInstances_;
+        private final int numOfFeatures_;
+        private final int maxDepth_;
+        private final double learningRate_;
+        private final int parallelism_;
+        private final ExecutorService pool_;
+        private final int[] classes_;
+        // Position of every target in classes_.
+        private final int[] classIndices_;
+        // bins_[f][i] is the bin of feature f of instance i, binEdges_[f][b]
+        // the largest value of bin b.
+        private final byte[][] bins_;
+        private final double[][] binEdges_;
+        // Histograms hold the sums of gradients and hessians of every bin of
+        // every feature, feature f starts at 2 * binOffsets_[f].
+        private final int[] binOffsets_;
+        private final int numOfBins_;
+        // Current scores of every instance, scores_[i * classes + c].
+        private final double[] scores_;
+        // Gradients and hessians of every instance for the tree being built.
+        private final double[] gradients_;
+        private final double[] hessians_;
+        // Instances, a node owns the range [from, to) and a split partitions
+        // it in place.
+        private final int[] rows_;
+        // Histograms not in use, a tree needs about one per level.
+        private final List<double[]> freeHistograms_ = new ArrayList<double[]>();
+        // The tree being built.
+        private int[] feature_;
+        private double[] threshold_;
+        private int[] child_;
+        private double[] value_;
+        private int numOfNodes_;
+        private int classIndex_;
+
+        Trainer(FeatureStore data, int[] targets, int maxDepth, double learningRate,
+                int parallelism) {
+            this.numOfInstances_ = data.getNumOfInstances();
+            this.numOfFeatures_ = data.getNumOfFeatures();
+            this.maxDepth_ = maxDepth;
+            this.learningRate_ = learningRate;
+            this.parallelism_ = parallelism;
+            this.pool_ = Executors.newFixedThreadPool(parallelism);
+            int[] sorted = targets.clone();
+            Arrays.sort(sorted);
+            int size = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[size++] = sorted[i];
+                }
+            }
+            this.classes_ = Arrays.copyOf(sorted, size);
+            this.classIndices_ = new int[numOfInstances_];
+            for (int i = 0; i < numOfInstances_; i++) {
+                classIndices_[i] = Arrays.binarySearch(classes_, targets[i]);
+            }
+            this.bins_ = new byte[numOfFeatures_][numOfInstances_];
+            this.binEdges_ = new double[numOfFeatures_][];
+            this.binOffsets_ = new int[numOfFeatures_];
+            double[] values = new double[numOfInstances_];
+            int numOfBins = 0;
+            for (int f = 0; f < numOfFeatures_; f++) {
+                for (int i = 0; i < numOfInstances_; i++) {
+                    values[i] = data.get(i, f);
+                }
+                double[] edges = FeatureStore.getBinEdges(values, MAX_BINS);
+                binEdges_[f] = edges;
+                binOffsets_[f] = numOfBins;
+                numOfBins += edges.length;
+                for (int i = 0; i < numOfInstances_; i++) {
+                    int bin = Arrays.binarySearch(edges, data.get(i, f));
+                    bins_[f][i] = (byte) (bin < 0 ? -bin - 1 : bin);
+                }
+            }
+            this.numOfBins_ = numOfBins;
+            this.scores_ = new double[numOfInstances_ * classes_.length];
+            this.gradients_ = new double[numOfInstances_];
+            this.hessians_ = new double[numOfInstances_];
+            this.rows_ = new int[numOfInstances_];
+        }
+
+        Model train(int numOfRounds) {
+            int numOfClasses = classes_.length;
+            double[] baseScores = new double[numOfClasses];
+            for (int i = 0; i < numOfInstances_; i++) {
+                baseScores[classIndices_[i]]++;
+            }
+            for (int c = 0; c < numOfClasses; c++) {
+                baseScores[c] = Math.log(baseScores[c] / numOfInstances_);
+            }
+            for (int i = 0; i < numOfInstances_; i++) {
+                System.arraycopy(baseScores, 0, scores_, i * numOfClasses, numOfClasses);
+            }
+            Tree[] trees = new Tree[numOfRounds * numOfClasses];
+            double[] probabilities = new double[numOfInstances_ * numOfClasses];
+            for (int round = 0; round < numOfRounds; round++) {
+                // All trees of a round fit the gradients of the scores at the
+                // start of the round.
+                for (int i = 0; i < numOfInstances_; i++) {
+                    softmax(scores_, i * numOfClasses, probabilities, numOfClasses);
+                }
+                for (int c = 0; c < numOfClasses; c++) {
+                    for (int i = 0; i < numOfInstances_; i++) {
+                        double p = probabilities[i * numOfClasses + c];
+                        gradients_[i] = classIndices_[i] == c ? p - 1 : p;
+                        hessians_[i] = Math.max(p * (1 - p), 1e-16);
+                    }
+                    trees[round * numOfClasses + c] = buildTree(c);
+                }
+            }
+            return new Model(classes_, baseScores, trees);
+        }
+
+        private Tree buildTree(int classIndex) {
+            classIndex_ = classIndex;
+            int maxNodes = (1 << (maxDepth_ + 1)) - 1;
+            feature_ = new int[maxNodes];
+            threshold_ = new double[maxNodes];
+            child_ = new int[maxNodes];
+            value_ = new double[maxNodes];
+            numOfNodes_ = 1;
+            double sumOfGradients = 0;
+            double sumOfHessians = 0;
+            for (int i = 0; i < numOfInstances_; i++) {
+                rows_[i] = i;
+                sumOfGradients += gradients_[i];
+                sumOfHessians += hessians_[i];
+            }
+            double[] histogram = takeHistogram();
+            buildHistogram(0, numOfInstances_, histogram);
+            grow(0, 0, numOfInstances_, 0, histogram, sumOfGradients, sumOfHessians);
+            return new Tree(Arrays.copyOf(feature_, numOfNodes_), Arrays.copyOf(threshold_,
+                    numOfNodes_), Arrays.copyOf(child_, numOfNodes_), Arrays.copyOf(value_,
+                    numOfNodes_));
+        }
+
+        // Split node, which owns rows_[from, to) and whose histogram is
+        // given, or make it a leaf. The histogram is reused by a child or
+        // given back.
+        private void grow(int node, int from, int to, int depth, double[] histogram,
+                double sumOfGradients, double sumOfHessians) {
+            double parentScore = sumOfGradients * sumOfGradients
+                    / (sumOfHessians + L2_REGULARIZATION);
+            double bestGain = 1e-9;
+            int bestFeature = -1;
+            int bestBin = -1;
+            double bestLeftGradients = 0;
+            double bestLeftHessians = 0;
+            for (int f = 0; depth < maxDepth_ && f < numOfFeatures_; f++) {
+                int cell = 2 * binOffsets_[f];
+                double leftGradients = 0;
+                double leftHessians = 0;
+                for (int b = 0; b < binEdges_[f].length - 1; b++, cell += 2) {
+                    leftGradients += histogram[cell];
+                    leftHessians += histogram[cell + 1];
+                    double rightHessians = sumOfHessians - leftHessians;
+                    if (leftHessians < MIN_CHILD_HESSIAN || rightHessians < MIN_CHILD_HESSIAN) {
+                        continue;
+                    }
+                    double rightGradients = sumOfGradients - leftGradients;
+                    double gain = leftGradients * leftGradients
+                            / (leftHessians + L2_REGULARIZATION) + rightGradients
+                            * rightGradients / (rightHessians + L2_REGULARIZATION) - parentScore;
+                    if (gain > bestGain) {
+                        bestGain = gain;
+                        bestFeature = f;
+                        bestBin = b;
+                        bestLeftGradients = leftGradients;
+                        bestLeftHessians = leftHessians;
+                    }
+                }
+            }
+            if (bestFeature < 0) {
+                double value = -learningRate_ * sumOfGradients
+                        / (sumOfHessians + L2_REGULARIZATION);
+                feature_[node] = -1;
+                value_[node] = value;
+                int numOfClasses = classes_.length;
+                for (int i = from; i < to; i++) {
+                    scores_[rows_[i] * numOfClasses + classIndex_] += value;
+                }
+                freeHistograms_.add(histogram);
+                return;
+            }
+            int mid = partition(from, to, bins_[bestFeature], bestBin);
+            int left = numOfNodes_;
+            numOfNodes_ += 2;
+            feature_[node] = bestFeature;
+            threshold_[node] = binEdges_[bestFeature][bestBin];
+            child_[node] = left;
+            // Build the histogram of the smaller child, the parent's becomes
+            // the one of the larger child.
+            double[] smaller = takeHistogram();
+            boolean leftIsSmaller = mid - from <= to - mid;
+            if (leftIsSmaller) {
+                buildHistogram(from, mid, smaller);
+            } else {
+                buildHistogram(mid, to, smaller);
+            }
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] -= smaller[i];
+            }
+            double[] leftHistogram = leftIsSmaller ? smaller : histogram;
+            double[] rightHistogram = leftIsSmaller ? histogram : smaller;
+            grow(left, from, mid, depth + 1, leftHistogram, bestLeftGradients, bestLeftHessians);
+            grow(left + 1, mid, to, depth + 1, rightHistogram, sumOfGradients
+                    - bestLeftGradients, sumOfHessians - bestLeftHessians);
+        }
+
+        // Move the rows whose bin is at most bin to the front of [from, to),
+        // returns where the others start.
+        private int partition(int from, int to, byte[] bins, int bin) {
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                if ((bins[rows_[i]] & 0xFF) <= bin) {
+                    i++;
+                } else {
+                    int tmp = rows_[i];
+                    rows_[i] = rows_[j];
+                    rows_[j--] = tmp;
+                }
+            }
+            return i;
+        }
+
+        private double[] takeHistogram() {
+            int size = freeHistograms_.size();
+            return size > 0 ? freeHistograms_.remove(size - 1) : new double[2 * numOfBins_];
+        }
+
+        // Sum the gradients and hessians of rows_[from, to) per bin.
+        private void buildHistogram(final int from, final int to, final double[] histogram) {
+            Arrays.fill(histogram, 0);
+            int blocks = (long) (to - from) * numOfFeatures_ < MIN_PARALLEL_WORK ? 1 : Math.min(
+                    parallelism_, numOfFeatures_);
+            if (blocks == 1) {
+                buildHistogram(from, to, 0, numOfFeatures_, histogram);
+                return;
+            }
+            List<Future<?>> futures = new ArrayList<Future<?>>(blocks);
+            for (int b = 0; b < blocks; b++) {
+                final int firstFeature = numOfFeatures_ * b / blocks;
+                final int lastFeature = numOfFeatures_ * (b + 1) / blocks;
+                futures.add(pool_.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        buildHistogram(from, to, firstFeature, lastFeature, histogram);
+                    }
+                }));
+            }
+            try {
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
+
+        // The part of the histogram of the features [firstFeature,
+        // lastFeature), which no other thread writes.
+        private void buildHistogram(int from, int to, int firstFeature, int lastFeature,
+                double[] histogram) {
+            for (int f = firstFeature; f < lastFeature; f++) {
+                byte[] bins = bins_[f];
+                int offset = 2 * binOffsets_[f];
+                for (int i = from; i < to; i++) {
+                    int row = rows_[i];
+                    int cell = offset + 2 * (bins[row] & 0xFF);
+                    histogram[cell] += gradients_[row];
+                    histogram[cell + 1] += hessians_[row];
+                }
+            }
+        }
+    }
+
+    // Turn scores[offset, offset + n) into probabilities[offset, ...).
+    private static void softmax(double[] scores, int offset, double[] probabilities, int n) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int c = 0; c < n; c++) {
+            max = Math.max(max, scores[offset + c]);
+        }
+        double sum = 0;
+        for (int c = 0; c < n; c++) {
+            probabilities[offset + c] = Math.exp(scores[offset + c] - max);
+            sum += probabilities[offset + c];
+        }
+        for (int c = 0; c < n; c++) {
+            probabilities[offset + c] /= sum;
+        }
+    }
+
+    private Model getModel() {
+        Model model = model_;
+        RandomForest.Util.CHECK(model != null, "the model is not trained");
+        return model;
+    }
+
+    // Scores of every class for one instance, indexed like getClasses().
+    private static double[] getScores(Model model, double[] instance) {
+        int numOfClasses = model.classes_.length;
+        double[] scores = model.baseScores_.clone();
+        for (int t = 0; t < model.trees_.length; t++) {
+            scores[t % numOfClasses] += model.trees_[t].predicate(instance);
+        }
+        return scores;
+    }
+
+    // Class labels in the order of the probabilities returned by
+    // predicateProbabilities().
+    public int[] getClasses() {
+        return getModel().classes_.clone();
+    }
+
+    @Override
+    public int getNumOfTrees() {
+        return getModel().trees_.length;
+    }
+
+    // Predicate one instance, the class with the highest score.
+    @Override
+    public int predicate(double[] instance) {
+        Model model = getModel();
+        double[] scores = getScores(model, instance);
+        int best = 0;
+        for (int c = 1; c < scores.length; c++) {
+            if (scores[c] > scores[best]) {
+                best = c;
+            }
+        }
+        return model.classes_[best];
+    }
+
+    // Get the probability of every class, see getClasses().
+    public double[] predicateProbabilities(double[] instance) {
+        double[] scores = getScores(getModel(), instance);
+        double[] ret = new double[scores.length];
+        softmax(scores, 0, ret, scores.length);
+        return ret;
+    }
+}
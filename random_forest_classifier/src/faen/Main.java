@@ -79,14 +79,48 @@ public class Main {
     private static double[][] test_instances = null;
     private static int[] test_targets = null;
 
+    private static void printSizeAndLatency(String name, RandomForest rf) {
+        long start = System.nanoTime();
+        for (double[] instance : test_instances) {
+            rf.predicate(instance);
+        }
+        System.out.println(name + " forest: " + rf.getNumOfNodes() + " nodes, "
+                + (System.nanoTime() - start) / test_instances.length + " ns per prediction");
+    }
+
+    private static void printAccuracyAndLatency(String name, ForestPredictor predictor) {
+        int correct = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < test_instances.length; i++) {
+            if (predictor.predicate(test_instances[i]) == test_targets[i]) {
+                correct++;
+            }
+        }
+        System.out.println(name + ": " + predictor.getNumOfTrees() + " trees, accuracy:" + 1.0
+                * correct / test_instances.length + ", " + (System.nanoTime() - start)
+                / test_instances.length + " ns per prediction");
+    }
+
     public static void main(String[] args) throws Exception {
         readCsv(3000, 500);
         RandomForest rf = new RandomForest();
-        rf.train(instances, targets, 100, 40, -1, 1000);
+        rf.setTrainingListener(new TrainingListener() {
+            @Override
+            public void onTreeBuilt(TrainingListener.TreeStats stats) {
+                System.out.println(stats);
+            }
+        });
+        // Pixels are 0 or 1 after getFeatureValue(), keep them as bits. With
+        // 40 of 784 candidates, EXHAUSTIVE sorts the candidates at each node
+        // instead of keeping 784 presorted int orders per tree, which would
+        // take far more memory than the bits.
+        rf.train(FeatureStore.binary(instances, false), targets, 100, 40, -1, 1000);
+        System.out.println("out-of-bag error:" + rf.getOobError());
         int correct = 0;
         int wrong = 0;
+        int[] actuals = rf.predicate(test_instances);
         for (int i = 0; i < test_targets.length; i++) {
-            int actual = rf.predicate(test_instances[i]);
+            int actual = actuals[i];
             System.out.println("actual: " + actual + ", expected: " + test_targets[i]);
             if (actual == test_targets[i]) {
                 correct++;
@@ -96,5 +130,21 @@ public class Main {
         }
         System.out.println("correct:" + correct + ", wrong:" + wrong + ", accuracy:" + 1.0
                 * correct / (correct + wrong));
+        // Most digits are decided long before the last tree.
+        long evaluated = 0;
+        for (double[] instance : test_instances) {
+            evaluated += rf.predicateWithEarlyExit(instance).numOfTreesEvaluated;
+        }
+        System.out.println("trees evaluated with early exit: " + 1.0 * evaluated
+                / test_instances.length + " of " + rf.getNumOfTrees());
+        printSizeAndLatency("trained", rf);
+        rf.compact();
+        printSizeAndLatency("compacted", rf);
+
+        // Fewer, shallower trees: one per class and round.
+        GradientBoosting gb = new GradientBoosting();
+        gb.train(instances, targets, 30, 6, 0.2);
+        printAccuracyAndLatency("random forest", rf);
+        printAccuracyAndLatency("gradient boosting", gb);
     }
 }
@@ -0,0 +1,114 @@
+package faen;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+// A forest saved by CompiledForest.save() and memory mapped. Prediction reads
+// the nodes straight from the mapping, so opening a model costs no parsing or
+// copying whatever its size, and processes serving the same file share its
+// pages through the page cache.
+public class MappedForest implements ForestPredictor {
+    private final int[] classes_;
+    private final IntBuffer roots_;
+    private final IntBuffer feature_;
+    private final IntBuffer child_;
+    private final DoubleBuffer threshold_;
+
+    private MappedForest(ByteBuffer buffer) {
+        RandomForest.Util.CHECK(buffer.capacity() >= 20, "not a forest model");
+        RandomForest.Util.CHECK(buffer.getInt(0) == CompiledForest.MAGIC, "not a forest model");
+        RandomForest.Util.CHECK(buffer.getInt(4) == CompiledForest.VERSION,
+                "unsupported forest model version: " + buffer.getInt(4));
+        int numOfClasses = buffer.getInt(8);
+        int numOfTrees = buffer.getInt(12);
+        int numOfNodes = buffer.getInt(16);
+        RandomForest.Util.CHECK(numOfClasses >= 0 && numOfTrees >= 0 && numOfNodes >= 0,
+                "corrupt forest model header");
+        long end = 20 + 4L * numOfClasses + 4L * numOfTrees + 8L * numOfNodes;
+        end += end % 8 + 8L * numOfNodes;
+        RandomForest.Util.CHECK(end <= buffer.capacity(), "truncated forest model: "
+                + buffer.capacity() + " bytes, the header needs " + end);
+        int offset = 20;
+        classes_ = new int[numOfClasses];
+        slice(buffer, offset, numOfClasses * 4).asIntBuffer().get(classes_);
+        offset += numOfClasses * 4;
+        roots_ = slice(buffer, offset, numOfTrees * 4).asIntBuffer();
+        offset += numOfTrees * 4;
+        feature_ = slice(buffer, offset, numOfNodes * 4).asIntBuffer();
+        offset += numOfNodes * 4;
+        child_ = slice(buffer, offset, numOfNodes * 4).asIntBuffer();
+        offset += numOfNodes * 4;
+        if (offset % 8 != 0) {
+            offset += 4;
+        }
+        threshold_ = slice(buffer, offset, numOfNodes * 8).asDoubleBuffer();
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer ret = buffer.duplicate();
+        ret.position(offset);
+        ret.limit(offset + length);
+        return ret.slice();
+    }
+
+    // Map a model file read only.
+    public static MappedForest open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new MappedForest(buffer);
+        } finally {
+            channel.close();
+        }
+    }
+
+    @Override
+    public int getNumOfTrees() {
+        return roots_.limit();
+    }
+
+    public int getNumOfNodes() {
+        return feature_.limit();
+    }
+
+    // Copy the mapped model into heap arrays.
+    CompiledForest toCompiledForest() {
+        int[] roots = new int[roots_.limit()];
+        int[] feature = new int[feature_.limit()];
+        int[] child = new int[child_.limit()];
+        double[] threshold = new double[threshold_.limit()];
+        roots_.duplicate().get(roots);
+        feature_.duplicate().get(feature);
+        child_.duplicate().get(child);
+        threshold_.duplicate().get(threshold);
+        return new CompiledForest(roots, feature, threshold, child, classes_.clone());
+    }
+
+    // Get the index in classes_ of the leaf the instance reaches in one tree.
+    private int predicateByOneTree(int tree, double[] instance) {
+        int node = roots_.get(tree);
+        int featureIndex;
+        while ((featureIndex = feature_.get(node)) >= 0) {
+            node = child_.get(node) + (instance[featureIndex] > threshold_.get(node) ? 1 : 0);
+        }
+        return child_.get(node);
+    }
+
+    // Predicate one instance, see Votes.
+    @Override
+    public int predicate(double[] instance) {
+        int[] votes = new int[classes_.length];
+        int bestClass = -1;
+        for (int tree = 0; tree < roots_.limit(); tree++) {
+            bestClass = Votes.add(votes, predicateByOneTree(tree, instance), bestClass);
+        }
+        return classes_[bestClass];
+    }
+}
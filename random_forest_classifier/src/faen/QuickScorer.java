@@ -0,0 +1,190 @@
+package faen;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+// QuickScorer (Lucchese et al., SIGIR 2015) for forests of shallow trees.
+// Instead of walking each tree from the root, it visits the split nodes of
+// all trees feature by feature. The leaves of a tree are numbered from left
+// to right and a tree keeps a bit mask of the leaves that can still be
+// reached. A node whose test fails (value > threshold) removes the leaves of
+// its left subtree with one AND. The nodes of a feature are sorted by
+// threshold, so the scan of a feature stops at the first node whose test
+// holds. The exit leaf of a tree is then its lowest set bit. Every tree must
+// have at most 64 leaves, which holds for maxDepth <= 7.
+public class QuickScorer implements ForestPredictor {
+    // The nodes of feature f are [featureStart_[f], featureStart_[f + 1]),
+    // sorted by threshold.
+    private final int[] featureStart_;
+    private final double[] threshold_;
+    private final int[] tree_;
+    // Leaves left reachable when the test of the node fails.
+    private final long[] mask_;
+    // leafClass_[leafStart_[t] + l] is the class index of leaf l of tree t.
+    private final int[] leafStart_;
+    private final int[] leafClass_;
+    private final int[] classes_;
+
+    public QuickScorer(CompiledForest forest) {
+        int numOfTrees = forest.roots_.length;
+        int numOfFeatures = 0;
+        for (int feature : forest.feature_) {
+            numOfFeatures = Math.max(numOfFeatures, feature + 1);
+        }
+        // Nodes shared by several parents, see RandomForest.compact(), get
+        // an entry for every path to them.
+        int[] counter = new int[2];
+        for (int root : forest.roots_) {
+            countNodes(forest, root, counter);
+        }
+        int numOfSplits = counter[0];
+        leafStart_ = new int[numOfTrees + 1];
+        leafClass_ = new int[counter[1]];
+        // Number the leaves of every tree from left to right, and give every
+        // split node the mask of the leaves outside its left subtree.
+        int[] splitNode = new int[numOfSplits];
+        long[] splitMask = new long[numOfSplits];
+        int[] splitTree = new int[numOfSplits];
+        counter = new int[2];
+        for (int t = 0; t < numOfTrees; t++) {
+            leafStart_[t] = counter[1];
+            numberLeaves(forest, forest.roots_[t], t, counter, splitNode, splitMask, splitTree);
+            RandomForest.Util.CHECK(counter[1] - leafStart_[t] <= 64, "tree " + t
+                    + " has more than 64 leaves, train with maxDepth <= 7");
+        }
+        leafStart_[numOfTrees] = counter[1];
+        // Sort the split nodes by feature with a counting sort, then the
+        // nodes of every feature by threshold.
+        featureStart_ = new int[numOfFeatures + 1];
+        for (int s = 0; s < numOfSplits; s++) {
+            featureStart_[forest.feature_[splitNode[s]] + 1]++;
+        }
+        for (int f = 0; f < numOfFeatures; f++) {
+            featureStart_[f + 1] += featureStart_[f];
+        }
+        int[] order = new int[numOfSplits];
+        int[] next = Arrays.copyOf(featureStart_, numOfFeatures);
+        for (int s = 0; s < numOfSplits; s++) {
+            order[next[forest.feature_[splitNode[s]]]++] = s;
+        }
+        threshold_ = new double[numOfSplits];
+        for (int i = 0; i < numOfSplits; i++) {
+            threshold_[i] = forest.threshold_[splitNode[order[i]]];
+        }
+        for (int f = 0; f < numOfFeatures; f++) {
+            RandomForest.sortByKeys(threshold_, order, 0, featureStart_[f], featureStart_[f + 1]);
+        }
+        tree_ = new int[numOfSplits];
+        mask_ = new long[numOfSplits];
+        for (int i = 0; i < numOfSplits; i++) {
+            tree_[i] = splitTree[order[i]];
+            mask_[i] = splitMask[order[i]];
+        }
+        classes_ = forest.classes_.clone();
+    }
+
+    // Count the split nodes into counter[0] and the leaves into counter[1].
+    private static void countNodes(CompiledForest forest, int node, int[] counter) {
+        if (forest.feature_[node] < 0) {
+            counter[1]++;
+        } else {
+            counter[0]++;
+            countNodes(forest, forest.child_[node], counter);
+            countNodes(forest, forest.child_[node] + 1, counter);
+        }
+    }
+
+    // In order walk of one tree. counter[0] counts split nodes and counter[1]
+    // leaves of the whole forest. Returns the mask of the leaves under node.
+    private long numberLeaves(CompiledForest forest, int node, int tree, int[] counter,
+            int[] splitNode, long[] splitMask, int[] splitTree) {
+        if (forest.feature_[node] < 0) {
+            int leaf = counter[1]++;
+            leafClass_[leaf] = forest.child_[node];
+            int bit = leaf - leafStart_[tree];
+            return bit < 64 ? 1L << bit : 0;
+        }
+        int split = counter[0]++;
+        int left = forest.child_[node];
+        long leftLeaves = numberLeaves(forest, left, tree, counter, splitNode, splitMask,
+                splitTree);
+        long rightLeaves = numberLeaves(forest, left + 1, tree, counter, splitNode, splitMask,
+                splitTree);
+        splitNode[split] = node;
+        splitMask[split] = ~leftLeaves;
+        splitTree[split] = tree;
+        return leftLeaves | rightLeaves;
+    }
+
+    @Override
+    public int getNumOfTrees() {
+        return leafStart_.length - 1;
+    }
+
+    // Predicate one instance, see Votes.
+    @Override
+    public int predicate(double[] instance) {
+        int numOfTrees = leafStart_.length - 1;
+        long[] leaves = new long[numOfTrees];
+        Arrays.fill(leaves, -1L);
+        for (int f = 0; f + 1 < featureStart_.length; f++) {
+            double value = instance[f];
+            int end = featureStart_[f + 1];
+            for (int i = featureStart_[f]; i < end && value > threshold_[i]; i++) {
+                leaves[tree_[i]] &= mask_[i];
+            }
+        }
+        int[] votes = new int[classes_.length];
+        int bestClass = -1;
+        for (int t = 0; t < numOfTrees; t++) {
+            int c = leafClass_[leafStart_[t] + Long.numberOfTrailingZeros(leaves[t])];
+            bestClass = Votes.add(votes, c, bestClass);
+        }
+        return classes_[bestClass];
+    }
+
+    // Compare the engines on a forest of shallow trees over random data.
+    public static void main(String[] args) throws Exception {
+        Random rand = new Random(1);
+        int m = 5000;
+        int n = 200;
+        double[][] instances = new double[m][n];
+        int[] targets = new int[m];
+        for (int i = 0; i < m; i++) {
+            for (int j = 0; j < n; j++) {
+                instances[i][j] = rand.nextInt(100);
+            }
+            targets[i] = (int) ((instances[i][0] + instances[i][1] + instances[i][2]) / 30);
+        }
+        RandomForest rf = new RandomForest();
+        rf.train(instances, targets, 300, 20, 7, 2000);
+        File file = File.createTempFile("forest", ".rf");
+        file.deleteOnExit();
+        rf.save(file);
+        int[] expected = new int[m];
+        for (int i = 0; i < m; i++) {
+            expected[i] = rf.predicate(instances[i]);
+        }
+        int[] predicted = new int[m];
+        for (ForestPredictor.Engine engine : ForestPredictor.Engine.values()) {
+            ForestPredictor predictor = ForestPredictor.load(file, engine);
+            long best = Long.MAX_VALUE;
+            for (int round = 0; round < 5; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < m; i++) {
+                    predicted[i] = predictor.predicate(instances[i]);
+                }
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            int same = 0;
+            for (int i = 0; i < m; i++) {
+                if (predicted[i] == expected[i]) {
+                    same++;
+                }
+            }
+            System.out.println(engine + ": " + best / m + " ns per instance, same as pointer: "
+                    + same + "/" + m);
+        }
+    }
+}
@@ -1,16 +1,24 @@
 package faen;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
-import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.Future;
 
-public class RandomForest {
+public class RandomForest implements ForestPredictor {
     static class Util {
         public static void CHECK(boolean condition, String message) {
             if (!condition) {
@@ -19,14 +27,64 @@ public class RandomForest {
         }
     }
 
-    private double[][] instances_;
+    private FeatureStore data_;
     private int[] targets_;
-    private int numOfTrees_;
     private int numOfFeatures_;
     private int maxDepth_;
-    private TreeNode[] trees_;
+    private SplitMode splitMode_;
+    // The trees predictions are made with, replaced as a whole when trees are
+    // added or retired so that predictions never see a half updated forest.
+    private volatile Forest forest_;
+    // Sorted distinct labels of the training targets.
+    private int[] classes_;
+    // Position of every training target in classes_.
+    private int[] classIndices_;
+    // Whether train() computes the permutation importance of the features.
+    private boolean computeImportance_ = false;
+    // oobVotes_[i][c] counts the trees that did not sample instance i and
+    // vote for class c. Guarded by itself.
+    private int[][] oobVotes_;
+    // Out-of-bag error after every finished tree, in the order trees finish.
+    private List<Double> oobErrors_;
+    // Sum of the feature importance of the trees trained on data_, and the
+    // number of those trees.
+    private double[] importanceSum_;
+    private int importanceTrees_;
+    private TrainingListener listener_ = null;
+    // Bin edges of every feature of data_ for SplitMode.LEVEL_WISE, computed
+    // when first needed.
+    private double[][] binEdges_;
+    // Cost of a leaf for pruning every new tree on its out-of-bag instances,
+    // negative to not prune.
+    private double oobPruningAlpha_ = -1;
+    // Number of the random stream of the seed the next tree built gets. The
+    // i-th tree of train() gets stream i, trees added later go on from the
+    // last one built.
+    private int nextStream_;
+    // Only used to pick a seed when the caller does not give one.
     private static Random rand = new Random();
 
+    // Trees of the forest, oldest first, with the labels they can vote for.
+    private static class Forest {
+        final TreeNode[] trees_;
+        final int[] classes_;
+
+        Forest(TreeNode[] trees, int[] classes) {
+            this.trees_ = trees;
+            this.classes_ = classes;
+        }
+    }
+
+    /**
+     * Train the RF model with one thread per available processor and a random
+     * seed.
+     */
+    public void train(double[][] instances, int[] targets, int numOfTrees, int numOfFeatures,
+            int maxDepth, int treeSize) {
+        train(instances, targets, numOfTrees, numOfFeatures, maxDepth, treeSize, Runtime
+                .getRuntime().availableProcessors(), rand.nextLong());
+    }
+
     /**
      * Train the RF model
      * 
@@ -39,185 +97,1685 @@ public class RandomForest {
      * @param maxDepth
      *            this could be -1, if so, any leaf node will have only 1
      *            instance.
+     * @param treeSize
+     *            number of instances sampled (with replacement) for each tree.
+     * @param parallelism
+     *            number of trees built at the same time, 1 builds all of them
+     *            on the calling thread.
+     * @param seed
+     *            every tree gets its own random stream split from this seed, so
+     *            the same seed gives the same forest whatever the parallelism.
      */
     public void train(double[][] instances, int[] targets, int numOfTrees, int numOfFeatures,
+            int maxDepth, int treeSize, int parallelism, long seed) {
+        train(FeatureStore.of(instances), targets, numOfTrees, numOfFeatures, maxDepth, treeSize,
+                parallelism, seed);
+    }
+
+    /**
+     * Train the RF model on instances kept in a FeatureStore, with one thread
+     * per available processor and a random seed.
+     */
+    public void train(FeatureStore data, int[] targets, int numOfTrees, int numOfFeatures,
             int maxDepth, int treeSize) {
-        Util.CHECK(instances.length == targets.length, "");
-        Util.CHECK(numOfTrees > 0, "");
-        this.instances_ = instances;
-        this.targets_ = targets;
-        this.numOfTrees_ = numOfTrees;
-        this.numOfFeatures_ = numOfFeatures;
-        this.maxDepth_ = maxDepth;
-        this.trees_ = new TreeNode[numOfTrees_];
-        for (int i = 0; i < trees_.length; i++) {
-            System.out.println("building the tree:" + i);
-            trees_[i] = buildTree(getRandomInstances(treeSize), 1);
+        train(data, targets, numOfTrees, numOfFeatures, maxDepth, treeSize, Runtime.getRuntime()
+                .availableProcessors(), rand.nextLong());
+    }
+
+    /**
+     * Train the RF model on instances kept in a FeatureStore, the other
+     * parameters are the same as for double[][] instances. A forest trained
+     * before keeps serving predictions until the new one is done.
+     */
+    public void train(FeatureStore data, int[] targets, int numOfTrees, int numOfFeatures,
+            int maxDepth, int treeSize, int parallelism, long seed) {
+        train(data, targets, numOfTrees, numOfFeatures, maxDepth, treeSize, SplitMode.EXHAUSTIVE,
+                parallelism, seed);
+    }
+
+    // How a node chooses the threshold of a split.
+    public enum SplitMode {
+        // Try every threshold between two distinct values of each candidate
+        // feature.
+        EXHAUSTIVE,
+        // Extremely randomized trees: draw one threshold per candidate feature
+        // uniformly between its smallest and largest value in the node. Much
+        // faster to train, no sorting at all, usually slightly less accurate
+        // per tree.
+        EXTRA_TREES,
+        // Grow each tree one depth at a time. The thresholds are the edges of
+        // up to MAX_BINS quantile bins of each feature, and all open nodes of
+        // a depth get their class histograms from one scan over the candidate
+        // feature columns in instance order. The data is read sequentially,
+        // so a column-major FeatureStore can live off heap or in a mapped
+        // file, and no per-tree sorted copies are kept.
+        LEVEL_WISE
+    }
+
+    // Most bins per feature for SplitMode.LEVEL_WISE, features with fewer
+    // distinct values get one bin per value and thus the exact thresholds.
+    static final int MAX_BINS = 64;
+    // Most histogram cells one scan of SplitMode.LEVEL_WISE fills. A depth
+    // with more open nodes takes several scans.
+    private static final int MAX_HISTOGRAM_CELLS = 1 << 22;
+    // Most entries of presorted orders, 4 bytes each, that the trees built at
+    // the same time by SplitMode.EXHAUSTIVE keep together. A tree whose
+    // orders do not fit its share sorts the candidates at every node.
+    private static final int MAX_SORTED_ENTRIES = 1 << 26;
+
+    /**
+     * Train the RF model on instances kept in a FeatureStore, choosing split
+     * thresholds as splitMode says. The other parameters are the same as for
+     * double[][] instances.
+     */
+    public synchronized void train(FeatureStore data, int[] targets, int numOfTrees,
+            int numOfFeatures, int maxDepth, int treeSize, SplitMode splitMode, int parallelism,
+            long seed) {
+        setParameters(data, numOfFeatures, maxDepth, splitMode);
+        setData(data, targets);
+        forest_ = new Forest(buildTrees(0, 0, numOfTrees, treeSize, parallelism, seed), classes_);
+    }
+
+    /**
+     * Train only the trees firstTree to firstTree + numOfTrees - 1 of the
+     * forest train() would build with the same parameters and seed. Merging
+     * the shards of all tree ranges in order with merge() gives that forest,
+     * so shards can be trained by different processes, see ShardedTraining.
+     */
+    public synchronized void trainShard(FeatureStore data, int[] targets, int firstTree,
+            int numOfTrees, int numOfFeatures, int maxDepth, int treeSize, SplitMode splitMode,
+            int parallelism, long seed) {
+        Util.CHECK(firstTree >= 0, "");
+        setParameters(data, numOfFeatures, maxDepth, splitMode);
+        setData(data, targets);
+        forest_ = new Forest(buildTrees(firstTree, firstTree, numOfTrees, treeSize, parallelism,
+                seed), classes_);
+    }
+
+    /**
+     * Put the trees of several forests, in the given order, into one new
+     * forest. The result can predicate, save and compile but keeps no
+     * training data.
+     */
+    public static RandomForest merge(RandomForest... forests) {
+        Util.CHECK(forests.length > 0, "");
+        TreeNode[] trees = new TreeNode[0];
+        int[] classes = new int[0];
+        for (RandomForest rf : forests) {
+            Forest forest = rf.getForest();
+            trees = concat(trees, 0, forest.trees_);
+            classes = mergeClasses(classes, forest.classes_);
+        }
+        RandomForest ret = new RandomForest();
+        ret.forest_ = new Forest(trees, classes);
+        return ret;
+    }
+
+    /**
+     * Grow a trained forest by numOfTrees trees built on the data of the last
+     * train() or replaceOldestTrees(), with the same parameters. Predictions
+     * keep using the current trees until the new ones are all built.
+     * 
+     * The new trees get the random streams of seed after those of the trees
+     * built so far, so with the seed of train(), train() of n trees followed
+     * by addTrees() of m gives the same forest as train() of n + m trees.
+     */
+    public synchronized void addTrees(int numOfTrees, int treeSize, int parallelism, long seed) {
+        Util.CHECK(forest_ != null && data_ != null, "no training data, call train() first");
+        Forest forest = forest_;
+        TreeNode[] trees = buildTrees(forest.trees_.length, nextStream_, numOfTrees, treeSize,
+                parallelism, seed);
+        forest_ = new Forest(concat(forest.trees_, 0, trees), forest.classes_);
+    }
+
+    // Same as replaceOldestTrees(FeatureStore...) for double[][] instances.
+    public void replaceOldestTrees(double[][] instances, int[] targets, int numOfTrees,
+            int treeSize, int parallelism, long seed) {
+        replaceOldestTrees(FeatureStore.of(instances), targets, numOfTrees, treeSize, parallelism,
+                seed);
+    }
+
+    /**
+     * Build numOfTrees trees on new data and retire the same number of the
+     * oldest trees, with the parameters of the last train(). Later calls of
+     * addTrees() use the new data, and the out-of-bag error and feature
+     * importance only cover the trees built on it. Predictions keep using the
+     * current trees until the new ones are all built. The new trees get the
+     * random streams of seed after those of the trees built so far, as with
+     * addTrees().
+     */
+    public synchronized void replaceOldestTrees(FeatureStore data, int[] targets, int numOfTrees,
+            int treeSize, int parallelism, long seed) {
+        Util.CHECK(forest_ != null && numOfFeatures_ > 0, "unknown parameters, call train() first");
+        Forest forest = forest_;
+        Util.CHECK(numOfTrees <= forest.trees_.length, "can not retire more trees than there are");
+        setData(data, targets);
+        TreeNode[] trees = buildTrees(forest.trees_.length, nextStream_, numOfTrees, treeSize,
+                parallelism, seed);
+        // Labels no tree votes for any more only get probability 0.
+        forest_ = new Forest(concat(forest.trees_, numOfTrees, trees), mergeClasses(
+                forest.classes_, classes_));
+    }
+
+    // Same as prune(FeatureStore...) for double[][] instances.
+    public void prune(double[][] instances, int[] targets, double alpha) {
+        prune(FeatureStore.of(instances), targets, alpha);
+    }
+
+    /**
+     * Cost-complexity pruning of every tree with labeled instances that were
+     * not used for training. Bottom up, a split is replaced by a leaf of the
+     * majority class of its training samples when that misclassifies fewer
+     * than alpha * instances * (leaves - 1) more instances than the subtree,
+     * where instances is the number of instances given and leaves the number
+     * of leaves of the subtree. With alpha 0 only splits that hurt on these
+     * instances are removed, a larger alpha prunes more. Every tree gets more
+     * accurate on its own, but the forest loses some of the diversity it
+     * votes with, so check the accuracy of the pruned forest. Predictions
+     * keep using the current trees until all are pruned.
+     */
+    public synchronized void prune(FeatureStore data, int[] targets, double alpha) {
+        Util.CHECK(data.getNumOfInstances() == targets.length && targets.length > 0, "");
+        Util.CHECK(alpha >= 0, "");
+        Forest forest = getForest();
+        Pruner pruner = new Pruner(data, targets, forest.classes_, alpha);
+        int[] rows = new int[targets.length];
+        TreeNode[] trees = new TreeNode[forest.trees_.length];
+        for (int t = 0; t < trees.length; t++) {
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = i;
+            }
+            trees[t] = pruner.prune(forest.trees_[t], rows, rows.length);
+        }
+        forest_ = new Forest(trees, forest.classes_);
+    }
+
+    /**
+     * Share identical leaves and subtrees among all trees, which only changes
+     * how much memory the forest takes, see getNumOfNodes(). load() shares
+     * again. The arrays of compile() and save() keep two children in
+     * adjacent slots, so a shared node is written again for every parent
+     * and only the subtrees below a shared child pair stay shared, never
+     * leaves.
+     */
+    public synchronized void compact() {
+        Forest forest = getForest();
+        Interner interner = new Interner();
+        TreeNode[] trees = new TreeNode[forest.trees_.length];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = interner.intern(forest.trees_[t]);
+        }
+        forest_ = new Forest(trees, forest.classes_);
+    }
+
+    // Number of distinct nodes of all trees, shared ones count once.
+    public int getNumOfNodes() {
+        Map<TreeNode, Boolean> seen = new IdentityHashMap<TreeNode, Boolean>();
+        for (TreeNode root : getForest().trees_) {
+            markNodes(root, seen);
         }
+        return seen.size();
     }
 
-    // Get sub set of all instances randomly.
-    List<Integer> getRandomInstances(int numOfInstances) {
-        List<Integer> ret = new ArrayList<Integer>(numOfInstances);
-        while (ret.size() < numOfInstances) {
-            ret.add(rand.nextInt(instances_.length));
+    private static void markNodes(TreeNode node, Map<TreeNode, Boolean> seen) {
+        if (seen.put(node, Boolean.TRUE) == null && !node.isLeafNode_) {
+            markNodes(node.left_, seen);
+            markNodes(node.right_, seen);
         }
+    }
+
+    private static TreeNode[] concat(TreeNode[] oldTrees, int retired, TreeNode[] newTrees) {
+        TreeNode[] ret = Arrays.copyOfRange(oldTrees, retired, oldTrees.length + newTrees.length);
+        System.arraycopy(newTrees, 0, ret, oldTrees.length - retired, newTrees.length);
         return ret;
     }
 
-    // Get the majority class of all samples having indices.
-    private int getMajorClass(List<Integer> indices) {
-        Map<Integer, Integer> mii = new HashMap<Integer, Integer>();
-        int best = -1;
-        int ret = -1;
-        for (int index : indices) {
-            Integer v = mii.get(targets_[index]);
-            if (v == null) {
-                v = 0;
+    private static int[] mergeClasses(int[] a, int[] b) {
+        int[] ret = new int[a.length + b.length];
+        int i = 0;
+        int j = 0;
+        int size = 0;
+        while (i < a.length || j < b.length) {
+            if (j == b.length || (i < a.length && a[i] < b[j])) {
+                ret[size++] = a[i++];
+            } else if (i == a.length || b[j] < a[i]) {
+                ret[size++] = b[j++];
+            } else {
+                ret[size++] = a[i++];
+                j++;
             }
-            mii.put(targets_[index], v + 1);
-            if (v + 1 > best) {
-                best = v + 1;
-                ret = targets_[index];
+        }
+        return Arrays.copyOf(ret, size);
+    }
+
+    private void setParameters(FeatureStore data, int numOfFeatures, int maxDepth,
+            SplitMode splitMode) {
+        int featureSize = data.getNumOfFeatures();
+        this.numOfFeatures_ = numOfFeatures > 0 ? Math.min(numOfFeatures, featureSize) : Math.max(
+                1, (int) Math.sqrt(featureSize));
+        this.maxDepth_ = maxDepth;
+        this.splitMode_ = splitMode;
+    }
+
+    // Make data the training data and reset everything measured on it.
+    private void setData(FeatureStore data, int[] targets) {
+        Util.CHECK(data.getNumOfInstances() == targets.length, "");
+        this.data_ = data;
+        this.targets_ = targets;
+        initClasses();
+        this.oobVotes_ = new int[data.getNumOfInstances()][classes_.length];
+        this.oobErrors_ = new ArrayList<Double>();
+        this.importanceSum_ = new double[data.getNumOfFeatures()];
+        this.importanceTrees_ = 0;
+        this.binEdges_ = null;
+    }
+
+    // binEdges_[f] is sorted, value v of feature f falls in the first bin
+    // whose edge is >= v, and the last edge is the largest value.
+    private void computeBinEdges() {
+        binEdges_ = new double[data_.getNumOfFeatures()][];
+        double[] values = new double[data_.getNumOfInstances()];
+        for (int featureIndex = 0; featureIndex < binEdges_.length; featureIndex++) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = data_.get(i, featureIndex);
             }
+            binEdges_[featureIndex] = FeatureStore.getBinEdges(values, MAX_BINS);
+        }
+    }
+
+    // Build numOfTrees trees on data_, the first one gets index firstIndex and
+    // the random stream number firstStream of seed, the next ones the streams
+    // after it.
+    private TreeNode[] buildTrees(int firstIndex, int firstStream, int numOfTrees, int treeSize,
+            int parallelism, long seed) {
+        Util.CHECK(numOfTrees > 0, "");
+        Util.CHECK(parallelism > 0, "");
+        if (splitMode_ == SplitMode.LEVEL_WISE && binEdges_ == null) {
+            computeBinEdges();
+        }
+        // Split the streams up front and in tree order, the i-th tree always
+        // gets the same stream no matter which thread builds it.
+        SplittableRandom root = new SplittableRandom(seed);
+        for (int i = 0; i < firstStream; i++) {
+            root.split();
+        }
+        // Presorting never changes the tree, so the share does not make the
+        // forest depend on the parallelism.
+        long sortedEntries = MAX_SORTED_ENTRIES / Math.min(parallelism, numOfTrees);
+        TreeBuilder[] builders = new TreeBuilder[numOfTrees];
+        for (int i = 0; i < builders.length; i++) {
+            builders[i] = new TreeBuilder(firstIndex + i, treeSize, sortedEntries, root.split());
+        }
+        nextStream_ = firstStream + numOfTrees;
+        TreeNode[] trees = new TreeNode[numOfTrees];
+        if (parallelism == 1) {
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = builders[i].call();
+            }
+        } else {
+            buildInParallel(builders, parallelism, trees);
+        }
+        if (computeImportance_) {
+            // Sum in tree order, the result does not depend on which tree
+            // finished first.
+            for (TreeBuilder builder : builders) {
+                if (builder.importance_ == null) {
+                    // The tree sampled every instance.
+                    continue;
+                }
+                for (int f = 0; f < importanceSum_.length; f++) {
+                    importanceSum_[f] += builder.importance_[f];
+                }
+                importanceTrees_++;
+            }
+        }
+        return trees;
+    }
+
+    private void buildInParallel(TreeBuilder[] builders, int parallelism, TreeNode[] trees) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, trees.length));
+        try {
+            List<Future<TreeNode>> futures = new ArrayList<Future<TreeNode>>(trees.length);
+            for (TreeBuilder builder : builders) {
+                futures.add(pool.submit(builder));
+            }
+            for (int i = 0; i < trees.length; i++) {
+                trees[i] = futures.get(i).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Whether train() computes the permutation importance of every feature:
+     * for every tree, the drop of its accuracy on its out-of-bag instances
+     * when the values of the feature are shuffled among them, averaged over
+     * all trees. Off by default.
+     */
+    public void setComputeImportance(boolean computeImportance) {
+        this.computeImportance_ = computeImportance;
+    }
+
+    /**
+     * Prune every tree built from now on with its out-of-bag instances, see
+     * prune(). The out-of-bag error is then measured on the instances the
+     * trees were pruned with and comes out a bit optimistic. A negative alpha,
+     * the default, turns pruning off.
+     */
+    public void setOutOfBagPruning(double alpha) {
+        this.oobPruningAlpha_ = alpha;
+    }
+
+    // Get statistics of every tree built by train(), null to stop.
+    public void setTrainingListener(TrainingListener listener) {
+        this.listener_ = listener;
+    }
+
+    // Get the feature importance averaged over the trees built on the
+    // current training data, null if it was not computed, see
+    // setComputeImportance().
+    public double[] getFeatureImportance() {
+        if (importanceSum_ == null || importanceTrees_ == 0) {
+            return null;
+        }
+        double[] ret = new double[importanceSum_.length];
+        for (int f = 0; f < ret.length; f++) {
+            ret[f] = importanceSum_[f] / importanceTrees_;
         }
         return ret;
     }
 
-    // Are all samples having indices have the same class?
-    private boolean haveSameClass(List<Integer> indices) {
-        for (int i = 1; i < indices.size(); i++) {
-            if (targets_[indices.get(i)] != targets_[indices.get(0)]) {
-                return false;
+    // Get the out-of-bag error of the forest: the fraction of training
+    // instances misclassified by the vote of the trees that did not sample
+    // them. Instances sampled by every tree are not counted.
+    public double getOobError() {
+        Util.CHECK(oobVotes_ != null, "the forest is not trained");
+        synchronized (oobVotes_) {
+            return oobErrors_.get(oobErrors_.size() - 1);
+        }
+    }
+
+    // Get the out-of-bag error after each tree finished, in the order the
+    // trees finished.
+    public double[] getOobErrors() {
+        Util.CHECK(oobVotes_ != null, "the forest is not trained");
+        synchronized (oobVotes_) {
+            double[] ret = new double[oobErrors_.size()];
+            for (int i = 0; i < ret.length; i++) {
+                ret[i] = oobErrors_.get(i);
             }
+            return ret;
         }
-        return true;
     }
 
-    // Get a list of indices of features randomly.
-    private List<Integer> getRandomFeatures() {
+    // Add the out-of-bag votes of one tree and record the new error.
+    private void addOobVotes(int[] oobIndices, int size, int[] oobClasses) {
+        synchronized (oobVotes_) {
+            for (int i = 0; i < size; i++) {
+                oobVotes_[oobIndices[i]][oobClasses[i]]++;
+            }
+            int wrong = 0;
+            int total = 0;
+            for (int i = 0; i < oobVotes_.length; i++) {
+                int[] votes = oobVotes_[i];
+                int best = 0;
+                for (int c = 1; c < votes.length; c++) {
+                    if (votes[c] > votes[best]) {
+                        best = c;
+                    }
+                }
+                if (votes[best] > 0) {
+                    total++;
+                    if (best != classIndices_[i]) {
+                        wrong++;
+                    }
+                }
+            }
+            oobErrors_.add(total == 0 ? 0 : 1.0 * wrong / total);
+        }
+    }
 
-        Set<Integer> set = new HashSet<Integer>();
-        int featureSize = instances_[0].length;
-        while (set.size() < numOfFeatures_) {
-            set.add(rand.nextInt(featureSize));
+    private void initClasses() {
+        int[] sortedTargets = targets_.clone();
+        Arrays.sort(sortedTargets);
+        int size = 0;
+        for (int i = 0; i < sortedTargets.length; i++) {
+            if (i == 0 || sortedTargets[i] != sortedTargets[i - 1]) {
+                sortedTargets[size++] = sortedTargets[i];
+            }
         }
+        classes_ = Arrays.copyOf(sortedTargets, size);
+        classIndices_ = new int[targets_.length];
+        for (int i = 0; i < targets_.length; i++) {
+            classIndices_[i] = Arrays.binarySearch(classes_, targets_[i]);
+        }
+    }
 
-        List<Integer> ret = new ArrayList<Integer>();
-        ret.addAll(set);
-        return ret;
+    // Get the majority class from the class counts of some samples.
+    private int getMajorClass(int[] counts) {
+        int best = 0;
+        for (int c = 1; c < counts.length; c++) {
+            if (counts[c] > counts[best]) {
+                best = c;
+            }
+        }
+        return classes_[best];
     }
 
-    // Get the entropy of some samples.
-    private double getEntropy(List<Integer> indices, int from, int to) {
-        Util.CHECK(to <= indices.size(), "");
-        Map<Integer, Integer> mii = new HashMap<Integer, Integer>();
-        for (int i = from; i < to; i++) {
-            Integer v = mii.get(targets_[indices.get(i)]);
-            if (v == null) {
-                v = 0;
+    // Do the class counts have only one class?
+    private boolean haveSameClass(int[] counts) {
+        int classes = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                classes++;
             }
-            mii.put(targets_[indices.get(i)], v + 1);
         }
+        return classes <= 1;
+    }
+
+    // Get the entropy of some samples from their class counts.
+    private double getEntropy(int[] counts, int total) {
         double ret = 0;
-        for (Integer key : mii.keySet()) {
-            int v = mii.get(key);
-            ret += Math.log((to - from) * 1.0 / v);
+        for (int v : counts) {
+            if (v > 0) {
+                ret += Math.log(total * 1.0 / v);
+            }
         }
         return ret;
     }
 
-    private TreeNode buildTree(List<Integer> indices, int curDepth) {
-        System.out.println("building tree, depth:" + curDepth);
-        if (maxDepth_ == curDepth) {
-            return new TreeNode(-1, -1, getMajorClass(indices), null, null, true);
-        }
-        if (haveSameClass(indices)) {
-            return new TreeNode(-1, -1, targets_[indices.get(0)], null, null, true);
-        }
-        List<Integer> featureInices = getRandomFeatures();
-        double bestEntropy = Double.MAX_VALUE;
-        int bestFeatureIndex = -1;
-        double splitValue = -1;
-        List<Integer> leftIndices = null;
-        List<Integer> rightIndices = null;
-
-        for (final int featureIndex : featureInices) {
-            Collections.sort(indices, new Comparator<Integer>() {
-                @Override
-                public int compare(Integer o1, Integer o2) {
-                    if (instances_[o1][featureIndex] < instances_[o2][featureIndex]) {
-                        return -1;
-                    } else if (instances_[o1][featureIndex] == instances_[o2][featureIndex]) {
-                        return o1 - o2;
-                    } else {
-                        return 1;
+    // Sort indices[from, to) by the value of feature featureIndex, keys is a
+    // scratch array of at least to - from elements.
+    private void sortByFeature(int[] indices, int from, int to, int featureIndex, double[] keys) {
+        for (int i = from; i < to; i++) {
+            keys[i - from] = data_.get(indices[i], featureIndex);
+        }
+        sortByKeys(keys, indices, from, 0, to - from);
+    }
+
+    // Quick sort keys[from, to) and move values along with keys, values is
+    // offset by valueOffset.
+    static void sortByKeys(double[] keys, int[] values, int valueOffset, int from, int to) {
+        while (to - from > 16) {
+            double pivot = keys[(from + to) >>> 1];
+            int i = from;
+            int j = to - 1;
+            while (i <= j) {
+                while (keys[i] < pivot) {
+                    i++;
+                }
+                while (keys[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    double key = keys[i];
+                    keys[i] = keys[j];
+                    keys[j] = key;
+                    int value = values[valueOffset + i];
+                    values[valueOffset + i] = values[valueOffset + j];
+                    values[valueOffset + j] = value;
+                    i++;
+                    j--;
+                }
+            }
+            // Recurse into the smaller half, loop on the larger one.
+            if (j + 1 - from < to - i) {
+                sortByKeys(keys, values, valueOffset, from, j + 1);
+                from = i;
+            } else {
+                sortByKeys(keys, values, valueOffset, i, to);
+                to = j + 1;
+            }
+        }
+        for (int i = from + 1; i < to; i++) {
+            double key = keys[i];
+            int value = values[valueOffset + i];
+            int j = i - 1;
+            while (j >= from && keys[j] > key) {
+                keys[j + 1] = keys[j];
+                values[valueOffset + j + 1] = values[valueOffset + j];
+                j--;
+            }
+            keys[j + 1] = key;
+            values[valueOffset + j + 1] = value;
+        }
+    }
+
+    // Builds one tree. Each builder owns its random stream, so builders can
+    // run on different threads without sharing any mutable state.
+    private class TreeBuilder implements Callable<TreeNode> {
+        private final int treeIndex_;
+        private final int treeSize_;
+        private final long sortedEntries_;
+        private final SplittableRandom rand_;
+
+        // Workspace of the tree, allocated once in call(). A node owns the
+        // range [from, to) of samples_ and of every sorted_[f], and a split
+        // partitions that range in place, so building the nodes allocates
+        // nothing but the TreeNode objects.
+
+        // Indices of the instances sampled for this tree.
+        private int[] samples_;
+        // sorted_[f] holds the same samples ordered by the value of feature f
+        // while presorting pays off, see presortPaysOff(). Null when the
+        // orders do not fit in sortedEntries_ and for the other split modes.
+        private int[][] sorted_;
+        // Scratch for partitioning sorted_, and the samples of one candidate
+        // feature in value order and their values.
+        private int[] buffer_;
+        private int[] order_;
+        private double[] keys_;
+        // inBag_[i] tells whether instance i is sampled for this tree.
+        private boolean[] inBag_;
+        // goesLeft_[i] tells whether instance i went left at the last split,
+        // so partitionSorted() does not read the feature values again.
+        private boolean[] goesLeft_;
+        // Importance of every feature measured on this tree.
+        private double[] importance_;
+        // Class counts of the current node and of both sides of a split.
+        private int[] counts_;
+        private int[] leftCounts_;
+        private int[] rightCounts_;
+        // All feature indices, the first numOfFeatures_ are the candidates of
+        // the current node.
+        private int[] features_;
+        // The split found by findBestSplit() or findRandomSplit(), feature
+        // index -1 if there is none.
+        private int splitFeatureIndex_;
+        private double splitValue_;
+        private int splitLeftSize_;
+        // Statistics for the TrainingListener.
+        private int numOfNodes_;
+        private int numOfLeaves_;
+        private int deepestLeaf_;
+        private long numOfSplitCandidates_;
+        private int minSamplesPerLeaf_ = Integer.MAX_VALUE;
+        private int maxSamplesPerLeaf_;
+
+        TreeBuilder(int treeIndex, int treeSize, long sortedEntries, SplittableRandom rand) {
+            this.treeIndex_ = treeIndex;
+            this.treeSize_ = treeSize;
+            this.sortedEntries_ = sortedEntries;
+            this.rand_ = rand;
+        }
+
+        @Override
+        public TreeNode call() {
+            TrainingListener listener = listener_;
+            long start = listener == null ? 0 : System.nanoTime();
+            int featureSize = data_.getNumOfFeatures();
+            samples_ = new int[treeSize_];
+            counts_ = new int[classes_.length];
+            leftCounts_ = new int[classes_.length];
+            rightCounts_ = new int[classes_.length];
+            features_ = new int[featureSize];
+            for (int i = 0; i < featureSize; i++) {
+                features_[i] = i;
+            }
+            getRandomInstances();
+            if (splitMode_ == SplitMode.EXHAUSTIVE) {
+                order_ = new int[treeSize_];
+                keys_ = new double[treeSize_];
+                if (1L * featureSize * treeSize_ <= sortedEntries_ && presortPaysOff(treeSize_)) {
+                    sorted_ = new int[featureSize][treeSize_];
+                    buffer_ = new int[treeSize_];
+                    goesLeft_ = new boolean[data_.getNumOfInstances()];
+                    // Sort the samples by every feature once, children inherit
+                    // these orders from their parent instead of sorting again.
+                    for (int featureIndex = 0; featureIndex < featureSize; featureIndex++) {
+                        System.arraycopy(samples_, 0, sorted_[featureIndex], 0, treeSize_);
+                        sortByFeature(sorted_[featureIndex], 0, treeSize_, featureIndex, keys_);
+                    }
+                }
+            }
+            try {
+                TreeNode root = splitMode_ == SplitMode.LEVEL_WISE ? buildLevelWise()
+                        : buildTree(0, treeSize_, 1, sorted_ != null);
+                if (oobPruningAlpha_ >= 0) {
+                    TreeNode pruned = pruneOutOfBag(root);
+                    if (pruned != root && listener != null) {
+                        countPrunedTree(pruned);
                     }
+                    root = pruned;
+                }
+                outOfBag(root);
+                if (listener != null) {
+                    listener.onTreeBuilt(new TrainingListener.TreeStats(treeIndex_, System
+                            .nanoTime() - start, numOfNodes_, numOfLeaves_, deepestLeaf_,
+                            numOfSplitCandidates_, minSamplesPerLeaf_, maxSamplesPerLeaf_, 1.0
+                                    * treeSize_ / numOfLeaves_));
+                }
+                return root;
+            } finally {
+                // The builder outlives the tree in train(), drop the workspace.
+                samples_ = null;
+                sorted_ = null;
+                buffer_ = null;
+                order_ = null;
+                keys_ = null;
+                inBag_ = null;
+                goesLeft_ = null;
+            }
+        }
+
+        // Get sub set of all instances randomly into samples_.
+        private void getRandomInstances() {
+            inBag_ = new boolean[data_.getNumOfInstances()];
+            for (int i = 0; i < samples_.length; i++) {
+                samples_[i] = rand_.nextInt(data_.getNumOfInstances());
+                inBag_[samples_[i]] = true;
+            }
+        }
+
+        // Prune the tree on the instances it did not sample.
+        private TreeNode pruneOutOfBag(TreeNode root) {
+            int[] rows = new int[data_.getNumOfInstances()];
+            int size = 0;
+            for (int i = 0; i < rows.length; i++) {
+                if (!inBag_[i]) {
+                    rows[size++] = i;
+                }
+            }
+            if (size == 0) {
+                return root;
+            }
+            return new Pruner(data_, targets_, classes_, oobPruningAlpha_).prune(root, rows, size);
+        }
+
+        // Count the nodes, leaves and samples per leaf of the tree pruning
+        // left again, for the TrainingListener.
+        private void countPrunedTree(TreeNode root) {
+            Map<TreeNode, Integer> leafSamples = new IdentityHashMap<TreeNode, Integer>();
+            for (int sample : samples_) {
+                TreeNode node = root;
+                while (!node.isLeafNode_) {
+                    double v = data_.get(sample, node.featureIndex_);
+                    node = v <= node.value_ ? node.left_ : node.right_;
+                }
+                Integer n = leafSamples.get(node);
+                leafSamples.put(node, n == null ? 1 : n + 1);
+            }
+            numOfNodes_ = 0;
+            numOfLeaves_ = 0;
+            deepestLeaf_ = 0;
+            minSamplesPerLeaf_ = Integer.MAX_VALUE;
+            maxSamplesPerLeaf_ = 0;
+            countNodes(root, 1, leafSamples);
+        }
+
+        private void countNodes(TreeNode node, int curDepth, Map<TreeNode, Integer> leafSamples) {
+            numOfNodes_++;
+            if (node.isLeafNode_) {
+                Integer n = leafSamples.get(node);
+                numOfLeaves_++;
+                deepestLeaf_ = Math.max(deepestLeaf_, curDepth);
+                minSamplesPerLeaf_ = Math.min(minSamplesPerLeaf_, n == null ? 0 : n);
+                maxSamplesPerLeaf_ = Math.max(maxSamplesPerLeaf_, n == null ? 0 : n);
+                return;
+            }
+            countNodes(node.left_, curDepth + 1, leafSamples);
+            countNodes(node.right_, curDepth + 1, leafSamples);
+        }
+
+        // Vote for the instances this tree did not sample and, if asked,
+        // measure the feature importance on them.
+        private void outOfBag(TreeNode root) {
+            int[] oobIndices = new int[data_.getNumOfInstances()];
+            int[] oobClasses = new int[data_.getNumOfInstances()];
+            int size = 0;
+            int correct = 0;
+            for (int i = 0; i < data_.getNumOfInstances(); i++) {
+                if (!inBag_[i]) {
+                    int c = Arrays.binarySearch(classes_, predicateByOneTree(root, data_, i));
+                    if (c == classIndices_[i]) {
+                        correct++;
+                    }
+                    oobIndices[size] = i;
+                    oobClasses[size++] = c;
+                }
+            }
+            addOobVotes(oobIndices, size, oobClasses);
+            if (!computeImportance_ || size == 0) {
+                return;
+            }
+            importance_ = new double[data_.getNumOfFeatures()];
+            boolean[] used = new boolean[importance_.length];
+            markUsedFeatures(root, used);
+            // Features the tree never splits on do not change its votes.
+            int[] permutation = new int[size];
+            for (int featureIndex = 0; featureIndex < used.length; featureIndex++) {
+                if (!used[featureIndex]) {
+                    continue;
+                }
+                for (int i = 0; i < size; i++) {
+                    permutation[i] = oobIndices[i];
+                }
+                for (int i = size - 1; i > 0; i--) {
+                    int j = rand_.nextInt(i + 1);
+                    int tmp = permutation[i];
+                    permutation[i] = permutation[j];
+                    permutation[j] = tmp;
+                }
+                int permutedCorrect = 0;
+                for (int i = 0; i < size; i++) {
+                    int index = oobIndices[i];
+                    int target = predicateByOneTree(root, data_, index, featureIndex,
+                            data_.get(permutation[i], featureIndex));
+                    if (target == targets_[index]) {
+                        permutedCorrect++;
+                    }
+                }
+                importance_[featureIndex] = 1.0 * (correct - permutedCorrect) / size;
+            }
+        }
+
+        // Move numOfFeatures_ randomly chosen feature indices to the front of
+        // features_, a partial Fisher-Yates shuffle.
+        private void getRandomFeatures() {
+            for (int i = 0; i < numOfFeatures_; i++) {
+                int j = i + rand_.nextInt(features_.length - i);
+                int tmp = features_[i];
+                features_[i] = features_[j];
+                features_[j] = tmp;
+            }
+        }
+
+        // Keeping the orders of all features costs about one pass over the
+        // node per feature when it is split, sorting only the candidates about
+        // numOfFeatures_ * log2(n) passes, so with many features and few
+        // candidates it is cheaper to sort. Nodes only get smaller, so once
+        // it stops paying off it does so for the whole subtree.
+        private boolean presortPaysOff(int n) {
+            return data_.getNumOfFeatures() <= 1L * numOfFeatures_
+                    * (32 - Integer.numberOfLeadingZeros(n));
+        }
+
+        // Build the node of samples [from, to). sorted tells whether [from,
+        // to) of every sorted_[f] holds the samples of the node.
+        private TreeNode buildTree(int from, int to, int curDepth, boolean sorted) {
+            int n = to - from;
+            numOfNodes_++;
+            int[] counts = counts_;
+            Arrays.fill(counts, 0);
+            for (int i = from; i < to; i++) {
+                counts[classIndices_[samples_[i]]]++;
+            }
+            if (maxDepth_ == curDepth) {
+                return newLeaf(getMajorClass(counts), n, curDepth);
+            }
+            if (haveSameClass(counts)) {
+                return newLeaf(targets_[samples_[from]], n, curDepth);
+            }
+            getRandomFeatures();
+            if (splitMode_ == SplitMode.EXHAUSTIVE) {
+                findBestSplit(from, to, counts, sorted);
+            } else {
+                findRandomSplit(from, to, counts);
+            }
+            int bestFeatureIndex = splitFeatureIndex_;
+            double splitValue = splitValue_;
+            int leftSize = splitLeftSize_;
+            // Kept on the split node, it is the leaf pruning replaces it with.
+            int majorClass = getMajorClass(counts);
+            if (bestFeatureIndex >= 0) {
+                int mid = partitionSamples(from, to, bestFeatureIndex, splitValue);
+                Util.CHECK(mid == from + leftSize, "");
+                boolean childrenSorted = sorted
+                        && presortPaysOff(Math.max(mid - from, to - mid));
+                if (childrenSorted) {
+                    for (int i = from; i < to; i++) {
+                        goesLeft_[samples_[i]] = i < mid;
+                    }
+                    for (int[] indices : sorted_) {
+                        partitionSorted(indices, from, to);
+                    }
+                }
+                return new TreeNode(bestFeatureIndex, splitValue, majorClass, buildTree(from,
+                        mid, curDepth + 1, childrenSorted), buildTree(mid, to, curDepth + 1,
+                        childrenSorted), false);
+            } else {
+                // All instances have the same features.
+                return newLeaf(majorClass, n, curDepth);
+            }
+        }
+
+        // Find the best threshold of every candidate feature with one sweep
+        // over the samples sorted by the feature, moving them from the right
+        // class counts to the left, and keep the best split in split*_. The
+        // order comes from sorted_ if sorted, else the candidate is sorted
+        // here. Either gives the same split.
+        private void findBestSplit(int from, int to, int[] counts, boolean sorted) {
+            int n = to - from;
+            double bestEntropy = Double.MAX_VALUE;
+            int bestFeatureIndex = -1;
+            double splitValue = -1;
+            int leftSize = 0;
+            int[] leftCounts = leftCounts_;
+            int[] rightCounts = rightCounts_;
+            long candidates = 0;
+
+            for (int f = 0; f < numOfFeatures_; f++) {
+                int featureIndex = features_[f];
+                // indices[start, start + n) in value order, keys_ their values.
+                int[] indices;
+                int start;
+                if (sorted) {
+                    indices = sorted_[featureIndex];
+                    start = from;
+                    for (int i = 0; i < n; i++) {
+                        keys_[i] = data_.get(indices[from + i], featureIndex);
+                    }
+                } else {
+                    indices = order_;
+                    start = 0;
+                    System.arraycopy(samples_, from, order_, 0, n);
+                    sortByFeature(order_, 0, n, featureIndex, keys_);
+                }
+                Arrays.fill(leftCounts, 0);
+                System.arraycopy(counts, 0, rightCounts, 0, counts.length);
+                for (int i = 0; i < n - 1; i++) {
+                    int c = classIndices_[indices[start + i]];
+                    leftCounts[c]++;
+                    rightCounts[c]--;
+                    double value = keys_[i];
+                    if (value == keys_[i + 1]) {
+                        continue;
+                    }
+                    int left = i + 1;
+                    candidates++;
+                    double entropy = 1.0 * left / n * getEntropy(leftCounts, left) + 1.0
+                            * (n - left) / n * getEntropy(rightCounts, n - left);
+                    if (entropy < bestEntropy) {
+                        bestEntropy = entropy;
+                        bestFeatureIndex = featureIndex;
+                        leftSize = left;
+                        splitValue = value;
+                    }
+                }
+            }
+            numOfSplitCandidates_ += candidates;
+            splitFeatureIndex_ = bestFeatureIndex;
+            splitValue_ = splitValue;
+            splitLeftSize_ = leftSize;
+        }
+
+
+        // Draw one random threshold for every candidate feature, between its
+        // smallest and largest value in the node, and keep the best split in
+        // split*_. Two passes over the samples per feature, no sorting.
+        private void findRandomSplit(int from, int to, int[] counts) {
+            int n = to - from;
+            double bestEntropy = Double.MAX_VALUE;
+            int[] leftCounts = leftCounts_;
+            int[] rightCounts = rightCounts_;
+            long candidates = 0;
+            splitFeatureIndex_ = -1;
+            for (int f = 0; f < numOfFeatures_; f++) {
+                int featureIndex = features_[f];
+                double min = Double.MAX_VALUE;
+                double max = -Double.MAX_VALUE;
+                for (int i = from; i < to; i++) {
+                    double value = data_.get(samples_[i], featureIndex);
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
                 }
-            });
-            int bestIndex = -1;
-            for (int i = 0; i < indices.size() - 1; i++) {
-                if (instances_[indices.get(i)][featureIndex] == instances_[indices.get(i + 1)][featureIndex]) {
+                if (min == max) {
                     continue;
                 }
-                double entropy = 1.0 * (i + 1 - 0) / indices.size() * getEntropy(indices, 0, i + 1)
-                        + 1.0 * (indices.size() - (i + 1)) / indices.size()
-                        * getEntropy(indices, i + 1, indices.size());
+                // In [min, max), so both sides get at least one sample.
+                double threshold = min + rand_.nextDouble() * (max - min);
+                if (threshold >= max) {
+                    threshold = min;
+                }
+                Arrays.fill(leftCounts, 0);
+                int left = 0;
+                for (int i = from; i < to; i++) {
+                    if (data_.get(samples_[i], featureIndex) <= threshold) {
+                        leftCounts[classIndices_[samples_[i]]]++;
+                        left++;
+                    }
+                }
+                for (int c = 0; c < counts.length; c++) {
+                    rightCounts[c] = counts[c] - leftCounts[c];
+                }
+                candidates++;
+                double entropy = 1.0 * left / n * getEntropy(leftCounts, left) + 1.0 * (n - left)
+                        / n * getEntropy(rightCounts, n - left);
                 if (entropy < bestEntropy) {
                     bestEntropy = entropy;
-                    bestFeatureIndex = featureIndex;
-                    bestIndex = i;
-                    splitValue = instances_[indices.get(i)][featureIndex];
+                    splitFeatureIndex_ = featureIndex;
+                    splitValue_ = threshold;
+                    splitLeftSize_ = left;
                 }
             }
-            if (bestIndex >= 0) {
-                leftIndices = new ArrayList<Integer>();
-                rightIndices = new ArrayList<Integer>();
-                leftIndices.addAll(indices.subList(0, bestIndex + 1));
-                rightIndices.addAll(indices.subList(bestIndex + 1, indices.size()));
+            numOfSplitCandidates_ += candidates;
+        }
+
+        // Build the tree one depth at a time, see SplitMode.LEVEL_WISE. The
+        // open nodes of a depth are numbered 0, 1, ... and slots[i] is the
+        // open node instance i is in, -1 once it reached a leaf.
+        private TreeNode buildLevelWise() {
+            int numOfInstances = data_.getNumOfInstances();
+            int numOfClasses = classes_.length;
+            // How many times every instance is sampled.
+            int[] weights = new int[numOfInstances];
+            for (int sample : samples_) {
+                weights[sample]++;
+            }
+            int[] slots = new int[numOfInstances];
+            int[] nextSlots = new int[numOfInstances];
+            int[][] counts = new int[1][numOfClasses];
+            for (int i = 0; i < numOfInstances; i++) {
+                counts[0][classIndices_[i]] += weights[i];
+            }
+            // Where the node of every open slot is attached.
+            TreeNode[] parents = new TreeNode[1];
+            boolean[] isLeft = new boolean[1];
+            TreeNode root = null;
+            for (int depth = 1; counts.length > 0; depth++) {
+                int size = counts.length;
+                // Feature index and threshold of the split of every slot,
+                // feature index -1 for a leaf, and the class counts of its
+                // left child.
+                int[] splitFeatures = new int[size];
+                double[] splitValues = new double[size];
+                int[][] leftCounts = new int[size][];
+                int[] splitting = new int[size];
+                int numOfSplitting = 0;
+                for (int slot = 0; slot < size; slot++) {
+                    splitFeatures[slot] = -1;
+                    if (maxDepth_ != depth && !haveSameClass(counts[slot])) {
+                        splitting[numOfSplitting++] = slot;
+                    }
+                }
+                // Candidate features of every splitting node, drawn in slot order.
+                int[][] candidates = new int[numOfSplitting][];
+                for (int k = 0; k < numOfSplitting; k++) {
+                    getRandomFeatures();
+                    candidates[k] = Arrays.copyOf(features_, numOfFeatures_);
+                }
+                for (int from = 0; from < numOfSplitting;) {
+                    from = findHistogramSplits(splitting, candidates, from, numOfSplitting,
+                            counts, slots, weights, splitFeatures, splitValues, leftCounts);
+                }
+                // Make the nodes of this depth and number their children.
+                int[] leftSlots = new int[size];
+                int nextSize = 0;
+                for (int slot = 0; slot < size; slot++) {
+                    int n = 0;
+                    for (int c : counts[slot]) {
+                        n += c;
+                    }
+                    numOfNodes_++;
+                    TreeNode node;
+                    if (splitFeatures[slot] < 0) {
+                        node = newLeaf(getMajorClass(counts[slot]), n, depth);
+                    } else {
+                        node = new TreeNode(splitFeatures[slot], splitValues[slot],
+                                getMajorClass(counts[slot]), null, null, false);
+                        leftSlots[slot] = nextSize;
+                        nextSize += 2;
+                    }
+                    if (parents[slot] == null) {
+                        root = node;
+                    } else if (isLeft[slot]) {
+                        parents[slot].left_ = node;
+                    } else {
+                        parents[slot].right_ = node;
+                    }
+                    parents[slot] = node;
+                }
+                int[][] nextCounts = new int[nextSize][];
+                TreeNode[] nextParents = new TreeNode[nextSize];
+                boolean[] nextIsLeft = new boolean[nextSize];
+                for (int slot = 0; slot < size; slot++) {
+                    if (splitFeatures[slot] >= 0) {
+                        int left = leftSlots[slot];
+                        nextCounts[left] = leftCounts[slot];
+                        nextCounts[left + 1] = new int[numOfClasses];
+                        for (int c = 0; c < numOfClasses; c++) {
+                            nextCounts[left + 1][c] = counts[slot][c] - leftCounts[slot][c];
+                        }
+                        nextParents[left] = parents[slot];
+                        nextParents[left + 1] = parents[slot];
+                        nextIsLeft[left] = true;
+                    }
+                }
+                // Move the instances to the children, one scan per feature
+                // that is split on.
+                boolean[] splitOn = new boolean[data_.getNumOfFeatures()];
+                for (int slot = 0; slot < size; slot++) {
+                    if (splitFeatures[slot] >= 0) {
+                        splitOn[splitFeatures[slot]] = true;
+                    }
+                }
+                Arrays.fill(nextSlots, -1);
+                for (int featureIndex = 0; featureIndex < splitOn.length; featureIndex++) {
+                    if (!splitOn[featureIndex]) {
+                        continue;
+                    }
+                    for (int i = 0; i < numOfInstances; i++) {
+                        int slot = slots[i];
+                        if (weights[i] > 0 && splitFeatures[slot] == featureIndex) {
+                            boolean left = data_.get(i, featureIndex) <= splitValues[slot];
+                            nextSlots[i] = left ? leftSlots[slot] : leftSlots[slot] + 1;
+                        }
+                    }
+                }
+                int[] tmp = slots;
+                slots = nextSlots;
+                nextSlots = tmp;
+                counts = nextCounts;
+                parents = nextParents;
+                isLeft = nextIsLeft;
+                if (nextSize > 0) {
+                    // Instances in leaves keep slot -1 from now on.
+                    for (int i = 0; i < numOfInstances; i++) {
+                        if (slots[i] < 0) {
+                            weights[i] = 0;
+                        }
+                    }
+                }
             }
+            return root;
         }
-        if (bestFeatureIndex >= 0) {
-            return new TreeNode(bestFeatureIndex, splitValue, -1, buildTree(leftIndices,
-                    curDepth + 1), buildTree(rightIndices, curDepth + 1), false);
-        } else {
-            // All instances have the same features.
-            return new TreeNode(-1, -1, getMajorClass(indices), null, null, true);
+
+        // Find the splits of the open nodes splitting[from, ...) with one scan
+        // over their candidate features, as many nodes as the histograms of
+        // MAX_HISTOGRAM_CELLS cells hold but at least one. Returns where the
+        // next scan starts.
+        private int findHistogramSplits(int[] splitting, int[][] candidates, int from,
+                int numOfSplitting, int[][] counts, int[] slots, int[] weights,
+                int[] splitFeatures, double[] splitValues, int[][] leftCounts) {
+            int numOfClasses = classes_.length;
+            int numOfFeatures = data_.getNumOfFeatures();
+            // Every candidate of every node gets a histogram with one row of
+            // class counts per bin. The entries of feature f are
+            // [featureStart[f], featureStart[f + 1]) of entryNodes and
+            // entryOffsets.
+            int[] featureStart = new int[numOfFeatures + 1];
+            int cells = 0;
+            int to = from;
+            while (to < numOfSplitting) {
+                int nodeCells = 0;
+                for (int featureIndex : candidates[to]) {
+                    nodeCells += binEdges_[featureIndex].length * numOfClasses;
+                }
+                if (to > from && cells + nodeCells > MAX_HISTOGRAM_CELLS) {
+                    break;
+                }
+                for (int featureIndex : candidates[to]) {
+                    featureStart[featureIndex + 1]++;
+                }
+                cells += nodeCells;
+                to++;
+            }
+            for (int f = 0; f < numOfFeatures; f++) {
+                featureStart[f + 1] += featureStart[f];
+            }
+            int[] entryNodes = new int[featureStart[numOfFeatures]];
+            int[] entryOffsets = new int[entryNodes.length];
+            int[] next = Arrays.copyOf(featureStart, numOfFeatures);
+            int[][] offsets = new int[to - from][];
+            cells = 0;
+            for (int k = from; k < to; k++) {
+                offsets[k - from] = new int[numOfFeatures_];
+                for (int f = 0; f < numOfFeatures_; f++) {
+                    int featureIndex = candidates[k][f];
+                    offsets[k - from][f] = cells;
+                    entryNodes[next[featureIndex]] = k - from;
+                    entryOffsets[next[featureIndex]++] = cells;
+                    cells += binEdges_[featureIndex].length * numOfClasses;
+                }
+            }
+            int[] histogram = new int[cells];
+            // Position of every open slot among the nodes of this scan.
+            int[] local = new int[counts.length];
+            Arrays.fill(local, -1);
+            for (int k = from; k < to; k++) {
+                local[splitting[k]] = k - from;
+            }
+            // offsetOf[k] is where node k keeps the histogram of the feature
+            // scanned, -1 if it is not one of its candidates.
+            int[] offsetOf = new int[to - from];
+            Arrays.fill(offsetOf, -1);
+            for (int featureIndex = 0; featureIndex < numOfFeatures; featureIndex++) {
+                if (featureStart[featureIndex] == featureStart[featureIndex + 1]) {
+                    continue;
+                }
+                for (int e = featureStart[featureIndex]; e < featureStart[featureIndex + 1]; e++) {
+                    offsetOf[entryNodes[e]] = entryOffsets[e];
+                }
+                double[] edges = binEdges_[featureIndex];
+                for (int i = 0; i < weights.length; i++) {
+                    if (weights[i] == 0) {
+                        continue;
+                    }
+                    int k = local[slots[i]];
+                    if (k < 0 || offsetOf[k] < 0) {
+                        continue;
+                    }
+                    int bin = Arrays.binarySearch(edges, data_.get(i, featureIndex));
+                    if (bin < 0) {
+                        bin = Math.min(-bin - 1, edges.length - 1);
+                    }
+                    histogram[offsetOf[k] + bin * numOfClasses + classIndices_[i]] += weights[i];
+                }
+                for (int e = featureStart[featureIndex]; e < featureStart[featureIndex + 1]; e++) {
+                    offsetOf[entryNodes[e]] = -1;
+                }
+            }
+            for (int k = from; k < to; k++) {
+                int slot = splitting[k];
+                findBestBinSplit(counts[slot], candidates[k], offsets[k - from], histogram);
+                if (splitFeatureIndex_ >= 0) {
+                    splitFeatures[slot] = splitFeatureIndex_;
+                    splitValues[slot] = splitValue_;
+                    leftCounts[slot] = leftCounts_.clone();
+                }
+            }
+            return to;
+        }
+
+        // Sweep the bins of every candidate feature from left to right, the
+        // same as findBestSplit() does with sorted samples, and keep the best
+        // split in split*_ and the class counts of its left side in
+        // leftCounts_.
+        private void findBestBinSplit(int[] counts, int[] features, int[] offsets,
+                int[] histogram) {
+            int numOfClasses = counts.length;
+            int n = 0;
+            for (int c : counts) {
+                n += c;
+            }
+            double bestEntropy = Double.MAX_VALUE;
+            int[] bestLeftCounts = new int[numOfClasses];
+            int[] leftCounts = new int[numOfClasses];
+            int[] rightCounts = rightCounts_;
+            long candidates = 0;
+            splitFeatureIndex_ = -1;
+            for (int f = 0; f < features.length; f++) {
+                double[] edges = binEdges_[features[f]];
+                Arrays.fill(leftCounts, 0);
+                System.arraycopy(counts, 0, rightCounts, 0, numOfClasses);
+                int left = 0;
+                for (int bin = 0; bin < edges.length - 1; bin++) {
+                    int cell = offsets[f] + bin * numOfClasses;
+                    int binSize = 0;
+                    for (int c = 0; c < numOfClasses; c++) {
+                        leftCounts[c] += histogram[cell + c];
+                        rightCounts[c] -= histogram[cell + c];
+                        binSize += histogram[cell + c];
+                    }
+                    left += binSize;
+                    if (binSize == 0 || left == 0) {
+                        continue;
+                    }
+                    if (left == n) {
+                        break;
+                    }
+                    candidates++;
+                    double entropy = 1.0 * left / n * getEntropy(leftCounts, left) + 1.0
+                            * (n - left) / n * getEntropy(rightCounts, n - left);
+                    if (entropy < bestEntropy) {
+                        bestEntropy = entropy;
+                        splitFeatureIndex_ = features[f];
+                        splitValue_ = edges[bin];
+                        splitLeftSize_ = left;
+                        System.arraycopy(leftCounts, 0, bestLeftCounts, 0, numOfClasses);
+                    }
+                }
+            }
+            numOfSplitCandidates_ += candidates;
+            System.arraycopy(bestLeftCounts, 0, leftCounts_, 0, numOfClasses);
+        }
+
+        private TreeNode newLeaf(int target, int n, int curDepth) {
+            numOfLeaves_++;
+            deepestLeaf_ = Math.max(deepestLeaf_, curDepth);
+            minSamplesPerLeaf_ = Math.min(minSamplesPerLeaf_, n);
+            maxSamplesPerLeaf_ = Math.max(maxSamplesPerLeaf_, n);
+            return new TreeNode(-1, -1, target, null, null, true);
+        }
+
+        // Partition samples_[from, to) in place, quick sort style, so that the
+        // samples going left come first. Returns the start of the right part.
+        private int partitionSamples(int from, int to, int featureIndex, double splitValue) {
+            int i = from;
+            int j = to - 1;
+            while (true) {
+                while (i <= j && data_.get(samples_[i], featureIndex) <= splitValue) {
+                    i++;
+                }
+                while (i <= j && data_.get(samples_[j], featureIndex) > splitValue) {
+                    j--;
+                }
+                if (i > j) {
+                    return i;
+                }
+                int tmp = samples_[i];
+                samples_[i] = samples_[j];
+                samples_[j] = tmp;
+            }
+        }
+
+        // Stable partition of indices[from, to) by goesLeft_, which keeps both
+        // parts sorted. The left part is compacted in place, the right part
+        // goes through buffer_.
+        private void partitionSorted(int[] indices, int from, int to) {
+            int l = from;
+            int r = 0;
+            for (int i = from; i < to; i++) {
+                int index = indices[i];
+                if (goesLeft_[index]) {
+                    indices[l++] = index;
+                } else {
+                    buffer_[r++] = index;
+                }
+            }
+            System.arraycopy(buffer_, 0, indices, l, r);
         }
     }
 
-    private int predicateByOneTree(TreeNode node, double[] instance) {
-        if (node.isLeafNode_) {
-            return node.target_;
+    private static int predicateByOneTree(TreeNode node, double[] instance) {
+        while (!node.isLeafNode_) {
+            node = instance[node.featureIndex_] <= node.value_ ? node.left_ : node.right_;
         }
-        if (instance[node.featureIndex_] <= node.value_) {
-            return predicateByOneTree(node.left_, instance);
-        } else {
-            return predicateByOneTree(node.right_, instance);
+        return node.target_;
+    }
+
+    // Predicate one training instance with one tree.
+    private static int predicateByOneTree(TreeNode node, FeatureStore data, int instanceIndex) {
+        while (!node.isLeafNode_) {
+            double v = data.get(instanceIndex, node.featureIndex_);
+            node = v <= node.value_ ? node.left_ : node.right_;
         }
+        return node.target_;
+    }
+
+    // Predicate one training instance with one tree as if its feature
+    // featureIndex had the given value.
+    private static int predicateByOneTree(TreeNode node, FeatureStore data, int instanceIndex,
+            int featureIndex, double value) {
+        while (!node.isLeafNode_) {
+            double v = node.featureIndex_ == featureIndex ? value : data.get(instanceIndex,
+                    node.featureIndex_);
+            node = v <= node.value_ ? node.left_ : node.right_;
+        }
+        return node.target_;
+    }
+
+    private static void markUsedFeatures(TreeNode node, boolean[] used) {
+        if (!node.isLeafNode_) {
+            used[node.featureIndex_] = true;
+            markUsedFeatures(node.left_, used);
+            markUsedFeatures(node.right_, used);
+        }
+    }
+
+    private Forest getForest() {
+        Forest forest = forest_;
+        Util.CHECK(forest != null, "the forest is not trained");
+        return forest;
+    }
+
+    // Count the votes of all trees for one instance into votes, indexed like
+    // forest.classes_. Returns the index of the winning class, see Votes.
+    private static int vote(Forest forest, double[] instance, int[] votes) {
+        Arrays.fill(votes, 0);
+        int bestClass = -1;
+        for (TreeNode root : forest.trees_) {
+            int c = Arrays.binarySearch(forest.classes_, predicateByOneTree(root, instance));
+            bestClass = Votes.add(votes, c, bestClass);
+        }
+        return bestClass;
+    }
+
+    // Class labels in the order of the probabilities returned by
+    // predicateProbabilities().
+    public int[] getClasses() {
+        return getForest().classes_.clone();
+    }
+
+    @Override
+    public int getNumOfTrees() {
+        return getForest().trees_.length;
     }
 
     // Predicate one instance.
+    @Override
     public int predicate(double[] instance) {
-        Map<Integer, Integer> mii = new HashMap<Integer, Integer>();
-        int bestTarget = -1;
-        int bestCount = -1;
-        for (TreeNode root : trees_) {
-            int target = predicateByOneTree(root, instance);
-            Integer v = mii.get(target);
-            if (v == null) {
-                v = 0;
+        Forest forest = getForest();
+        return forest.classes_[vote(forest, instance, new int[forest.classes_.length])];
+    }
+
+    // A confidence no share of the votes reaches, it leaves
+    // predicateWithEarlyExit() only the exact exit.
+    private static final double NO_CONFIDENCE_EXIT = Double.POSITIVE_INFINITY;
+
+    // The result of predicateWithEarlyExit().
+    public static class Prediction {
+        public final int target;
+        // Number of trees walked before the vote was decided.
+        public final int numOfTreesEvaluated;
+
+        public Prediction(int target, int numOfTreesEvaluated) {
+            this.target = target;
+            this.numOfTreesEvaluated = numOfTreesEvaluated;
+        }
+    }
+
+    /**
+     * Predicate one instance, but stop walking trees once the leading class
+     * can not be overtaken by the trees left. The target is always the one
+     * predicate() returns.
+     */
+    public Prediction predicateWithEarlyExit(double[] instance) {
+        return predicateWithEarlyExit(instance, NO_CONFIDENCE_EXIT, 0);
+    }
+
+    /**
+     * Like predicateWithEarlyExit(double[]), and also stop once at least
+     * minTrees trees were walked and the leading class has at least the given
+     * fraction of their votes. Unlike the exact exit this one can return
+     * another target than predicate(); a confidence above 1 turns it off.
+     */
+    public Prediction predicateWithEarlyExit(double[] instance, double confidence,
+            int minTrees) {
+        Forest forest = getForest();
+        TreeNode[] trees = forest.trees_;
+        int[] votes = new int[forest.classes_.length];
+        int bestClass = -1;
+        for (int t = 0; t < trees.length; t++) {
+            int c = Arrays.binarySearch(forest.classes_, predicateByOneTree(trees[t], instance));
+            bestClass = Votes.add(votes, c, bestClass);
+            int bestCount = votes[bestClass];
+            int evaluated = t + 1;
+            int remaining = trees.length - evaluated;
+            if (evaluated >= minTrees && bestCount >= confidence * evaluated) {
+                return new Prediction(forest.classes_[bestClass], evaluated);
+            }
+            // bestClass reached its count before any other class could tie
+            // it, so it also wins when the runner up ends up level with it.
+            if (bestCount >= runnerUp(votes, bestClass) + remaining) {
+                return new Prediction(forest.classes_[bestClass], evaluated);
             }
-            mii.put(target, v + 1);
-            if (v + 1 > bestCount) {
-                bestCount = v + 1;
-                bestTarget = target;
+        }
+        return new Prediction(forest.classes_[bestClass], trees.length);
+    }
+
+    // Highest vote count of any class but bestClass.
+    private static int runnerUp(int[] votes, int bestClass) {
+        int ret = 0;
+        for (int c = 0; c < votes.length; c++) {
+            if (c != bestClass && votes[c] > ret) {
+                ret = votes[c];
             }
         }
-        return bestTarget;
+        return ret;
     }
 
-    // TreeNode of the decision tree.
+    // Get the fraction of trees voting for every class, see getClasses().
+    public double[] predicateProbabilities(double[] instance) {
+        Forest forest = getForest();
+        int[] votes = new int[forest.classes_.length];
+        vote(forest, instance, votes);
+        double[] ret = new double[votes.length];
+        toProbabilities(forest, votes, ret);
+        return ret;
+    }
+
+    private static void toProbabilities(Forest forest, int[] votes, double[] probabilities) {
+        for (int c = 0; c < votes.length; c++) {
+            probabilities[c] = 1.0 * votes[c] / forest.trees_.length;
+        }
+    }
+
+    // Predicate a batch of instances with one thread per available processor.
+    public int[] predicate(double[][] instances) {
+        return predicate(instances, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Predicate a batch of instances, rows are split among parallelism threads.
+    public int[] predicate(double[][] instances, int parallelism) {
+        int[] ret = new int[instances.length];
+        predicateInParallel(getForest(), instances, instances.length, parallelism, ret, null);
+        return ret;
+    }
+
+    // Get the class probabilities of a batch of instances, see getClasses().
+    public double[][] predicateProbabilities(double[][] instances, int parallelism) {
+        Forest forest = getForest();
+        int[] targets = new int[instances.length];
+        double[][] ret = new double[instances.length][forest.classes_.length];
+        predicateInParallel(forest, instances, instances.length, parallelism, targets, ret);
+        return ret;
+    }
+
+    // Receives the results of the streaming predicate().
+    public interface PredictionListener {
+        /**
+         * @param row
+         *            position of the instance in the stream.
+         * @param target
+         *            the predicated class.
+         * @param probabilities
+         *            fraction of votes for every class, see getClasses(). The
+         *            array is reused for later rows, copy it to keep it.
+         */
+        void onPrediction(long row, int target, double[] probabilities);
+    }
+
+    /**
+     * Predicate a stream of instances. Rows are read batchSize at a time,
+     * every batch is scored by parallelism threads and the results are handed
+     * to the listener in the order of the stream. Each batch is scored by the
+     * trees of the forest at the time the batch starts.
+     */
+    public void predicate(Iterator<double[]> instances, int batchSize, int parallelism,
+            PredictionListener listener) {
+        Util.CHECK(batchSize > 0, "");
+        double[][] batch = new double[batchSize][];
+        int[] targets = new int[batchSize];
+        double[][] probabilities = new double[batchSize][0];
+        long row = 0;
+        while (instances.hasNext()) {
+            int size = 0;
+            while (size < batchSize && instances.hasNext()) {
+                batch[size++] = instances.next();
+            }
+            Forest forest = getForest();
+            if (probabilities[0].length != forest.classes_.length) {
+                probabilities = new double[batchSize][forest.classes_.length];
+            }
+            predicateInParallel(forest, batch, size, parallelism, targets, probabilities);
+            for (int i = 0; i < size; i++) {
+                listener.onPrediction(row++, targets[i], probabilities[i]);
+            }
+        }
+    }
+
+    // Threads of the parallel predicate() calls, created when first needed.
+    // The pool keeps idle threads for a minute, so later calls and the
+    // batches of a stream reuse them instead of starting their own. Daemon
+    // threads, they never keep the JVM alive.
+    private static class PredictionPool {
+        static final ExecutorService POOL = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread thread = new Thread(task, "RandomForest-predicate");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // Score instances[0, size) into targets and, if not null, probabilities.
+    // Each thread takes a contiguous block of rows and reuses one votes array
+    // for all of them.
+    private static void predicateInParallel(final Forest forest, final double[][] instances,
+            int size, int parallelism, final int[] targets, final double[][] probabilities) {
+        Util.CHECK(parallelism > 0, "");
+        int blocks = Math.min(parallelism, size);
+        if (blocks <= 1) {
+            predicateRange(forest, instances, 0, size, targets, probabilities);
+            return;
+        }
+        ExecutorService pool = PredictionPool.POOL;
+        List<Future<?>> futures = new ArrayList<Future<?>>(blocks);
+        try {
+            for (int b = 0; b < blocks; b++) {
+                final int from = (int) ((long) size * b / blocks);
+                final int to = (int) ((long) size * (b + 1) / blocks);
+                futures.add(pool.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        predicateRange(forest, instances, from, to, targets, probabilities);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            // The pool is shared, stop only the blocks of this call if it
+            // failed.
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void predicateRange(Forest forest, double[][] instances, int from, int to,
+            int[] targets, double[][] probabilities) {
+        int[] votes = new int[forest.classes_.length];
+        for (int i = from; i < to; i++) {
+            targets[i] = forest.classes_[vote(forest, instances[i], votes)];
+            if (probabilities != null) {
+                toProbabilities(forest, votes, probabilities[i]);
+            }
+        }
+    }
+
+    /**
+     * Flatten the trained forest into a CompiledForest, which gives the same
+     * predictions with less memory and faster traversal.
+     */
+    public CompiledForest compile() {
+        Forest forest = getForest();
+        TreeNode[] trees = forest.trees_;
+        int numOfNodes = 0;
+        for (TreeNode root : trees) {
+            numOfNodes += countNodes(root);
+        }
+        int[] roots = new int[trees.length];
+        int[] feature = new int[numOfNodes];
+        double[] threshold = new double[numOfNodes];
+        int[] child = new int[numOfNodes];
+        // Breadth first, nodes are numbered in the order they are queued, so
+        // the children of a node get two adjacent indices. So a shared node,
+        // see compact(), is written again for every parent, but its children
+        // are only queued the first time: the subtrees below a shared child
+        // pair are shared, leaves never are.
+        TreeNode[] queue = new TreeNode[numOfNodes];
+        Map<TreeNode, Integer> queuedChildren = new IdentityHashMap<TreeNode, Integer>();
+        int size = 0;
+        for (int t = 0; t < trees.length; t++) {
+            roots[t] = size;
+            queue[size++] = trees[t];
+            for (int i = roots[t]; i < size; i++) {
+                TreeNode node = queue[i];
+                if (node.isLeafNode_) {
+                    feature[i] = -1;
+                    child[i] = Arrays.binarySearch(forest.classes_, node.target_);
+                } else {
+                    feature[i] = node.featureIndex_;
+                    threshold[i] = node.value_;
+                    Integer children = queuedChildren.get(node);
+                    if (children != null) {
+                        child[i] = children;
+                        continue;
+                    }
+                    queuedChildren.put(node, size);
+                    child[i] = size;
+                    queue[size++] = node.left_;
+                    queue[size++] = node.right_;
+                }
+            }
+        }
+        return new CompiledForest(roots, Arrays.copyOf(feature, size), Arrays.copyOf(threshold,
+                size), Arrays.copyOf(child, size), forest.classes_.clone());
+    }
+
+    // Save the forest in the binary format of CompiledForest.save().
+    public void save(File file) throws IOException {
+        compile().save(file);
+    }
+
+    /**
+     * Load a forest saved by save(). The forest can predicate but keeps no
+     * training data. To only serve a model, MappedForest.open() is faster.
+     */
+    public static RandomForest load(File file) throws IOException {
+        CompiledForest compiled = CompiledForest.load(file);
+        RandomForest rf = new RandomForest();
+        TreeNode[] trees = new TreeNode[compiled.roots_.length];
+        TreeNode[] nodes = new TreeNode[compiled.feature_.length];
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = toTreeNode(compiled, compiled.roots_[t], nodes);
+        }
+        // The file repeats shared nodes and leaves, see compile(), so share
+        // them again as compact() does.
+        Interner interner = new Interner();
+        for (int t = 0; t < trees.length; t++) {
+            trees[t] = interner.intern(trees[t]);
+        }
+        rf.forest_ = new Forest(trees, compiled.classes_);
+        return rf;
+    }
+
+    // nodes caches the TreeNode of every compiled node, so a compiled node
+    // reached from several parents, the root of a shared child pair, is built
+    // once. Copies of the same node in other slots are separate objects until
+    // load() interns them.
+    private static TreeNode toTreeNode(CompiledForest compiled, int node, TreeNode[] nodes) {
+        if (nodes[node] != null) {
+            return nodes[node];
+        }
+        if (compiled.feature_[node] < 0) {
+            nodes[node] = new TreeNode(-1, -1, compiled.classes_[compiled.child_[node]], null,
+                    null, true);
+        } else {
+            // The majority class of a split is not saved.
+            int left = compiled.child_[node];
+            nodes[node] = new TreeNode(compiled.feature_[node], compiled.threshold_[node], -1,
+                    toTreeNode(compiled, left, nodes), toTreeNode(compiled, left + 1, nodes),
+                    false);
+        }
+        return nodes[node];
+    }
+
+    private static int countNodes(TreeNode node) {
+        if (node.isLeafNode_) {
+            return 1;
+        }
+        return 1 + countNodes(node.left_) + countNodes(node.right_);
+    }
+
+    // TreeNode of the decision tree. target_ of a split node is the majority
+    // class of its training samples, -1 if unknown. Trees are never changed
+    // once built, so nodes can be shared, see compact().
     private static class TreeNode {
         public int featureIndex_;
         public double value_;
@@ -237,6 +1795,165 @@ public class RandomForest {
         }
     }
 
+    // Bottom up cost-complexity pruning of trees with labeled instances, see
+    // prune(). Returns new nodes where the tree changes, never modifies one.
+    private static class Pruner {
+        private final FeatureStore data_;
+        private final int[] targets_;
+        private final int[] classes_;
+        private final double alpha_;
+        private int[] rows_;
+        private double errorsPerLeaf_;
+        // Misclassified instances and leaves of the subtree prune() returned
+        // last.
+        private int errors_;
+        private int leaves_;
+
+        Pruner(FeatureStore data, int[] targets, int[] classes, double alpha) {
+            this.data_ = data;
+            this.targets_ = targets;
+            this.classes_ = classes;
+            this.alpha_ = alpha;
+        }
+
+        // Prune the tree with the instances rows[0, size), which get reordered.
+        TreeNode prune(TreeNode root, int[] rows, int size) {
+            rows_ = rows;
+            errorsPerLeaf_ = alpha_ * size;
+            return prune(root, 0, size);
+        }
+
+        // Prune the subtree reached by the instances rows_[from, to).
+        private TreeNode prune(TreeNode node, int from, int to) {
+            if (node.isLeafNode_) {
+                errors_ = countErrors(node.target_, from, to);
+                leaves_ = 1;
+                return node;
+            }
+            int mid = partition(from, to, node.featureIndex_, node.value_);
+            TreeNode left = prune(node.left_, from, mid);
+            int errors = errors_;
+            int leaves = leaves_;
+            TreeNode right = prune(node.right_, mid, to);
+            errors += errors_;
+            leaves += leaves_;
+            // Splits of a loaded forest do not know their majority class,
+            // take the one of the instances reaching them.
+            int target = node.target_ >= 0 ? node.target_ : getMajorClass(from, to);
+            if (target >= 0) {
+                int leafErrors = countErrors(target, from, to);
+                if (leafErrors - errors < errorsPerLeaf_ * (leaves - 1)) {
+                    errors_ = leafErrors;
+                    leaves_ = 1;
+                    return new TreeNode(-1, -1, target, null, null, true);
+                }
+            }
+            errors_ = errors;
+            leaves_ = leaves;
+            if (left == node.left_ && right == node.right_) {
+                return node;
+            }
+            return new TreeNode(node.featureIndex_, node.value_, node.target_, left, right, false);
+        }
+
+        private int countErrors(int target, int from, int to) {
+            int ret = 0;
+            for (int i = from; i < to; i++) {
+                if (targets_[rows_[i]] != target) {
+                    ret++;
+                }
+            }
+            return ret;
+        }
+
+        // Most frequent known class of rows_[from, to), -1 if there is none.
+        private int getMajorClass(int from, int to) {
+            int[] counts = new int[classes_.length];
+            int best = -1;
+            for (int i = from; i < to; i++) {
+                int c = Arrays.binarySearch(classes_, targets_[rows_[i]]);
+                if (c >= 0 && ++counts[c] > (best < 0 ? 0 : counts[best])) {
+                    best = c;
+                }
+            }
+            return best < 0 ? -1 : classes_[best];
+        }
+
+        // Move the rows going left to the front, returns where the others
+        // start.
+        private int partition(int from, int to, int featureIndex, double value) {
+            int mid = from;
+            for (int i = from; i < to; i++) {
+                if (data_.get(rows_[i], featureIndex) <= value) {
+                    int tmp = rows_[i];
+                    rows_[i] = rows_[mid];
+                    rows_[mid++] = tmp;
+                }
+            }
+            return mid;
+        }
+    }
+
+    // Gives identical subtrees one shared copy. Children are interned first,
+    // so two split nodes are identical when their own fields are equal and
+    // their children are the same objects.
+    private static class Interner {
+        private final Map<NodeKey, TreeNode> nodes_ = new HashMap<NodeKey, TreeNode>();
+        // Interned copy of every node seen, so shared input is walked once.
+        private final Map<TreeNode, TreeNode> interned_ = new IdentityHashMap<TreeNode,
+                TreeNode>();
+
+        TreeNode intern(TreeNode node) {
+            TreeNode ret = interned_.get(node);
+            if (ret != null) {
+                return ret;
+            }
+            TreeNode left = node.isLeafNode_ ? null : intern(node.left_);
+            TreeNode right = node.isLeafNode_ ? null : intern(node.right_);
+            NodeKey key = new NodeKey(node, left, right);
+            ret = nodes_.get(key);
+            if (ret == null) {
+                ret = left == node.left_ && right == node.right_ ? node : new TreeNode(
+                        node.featureIndex_, node.value_, node.target_, left, right,
+                        node.isLeafNode_);
+                nodes_.put(key, ret);
+            }
+            interned_.put(node, ret);
+            return ret;
+        }
+    }
+
+    private static class NodeKey {
+        private final TreeNode node_;
+        private final TreeNode left_;
+        private final TreeNode right_;
+
+        NodeKey(TreeNode node, TreeNode left, TreeNode right) {
+            this.node_ = node;
+            this.left_ = left;
+            this.right_ = right;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            NodeKey other = (NodeKey) o;
+            return node_.isLeafNode_ == other.node_.isLeafNode_
+                    && node_.featureIndex_ == other.node_.featureIndex_
+                    && Double.compare(node_.value_, other.node_.value_) == 0
+                    && node_.target_ == other.node_.target_ && left_ == other.left_
+                    && right_ == other.right_;
+        }
+
+        @Override
+        public int hashCode() {
+            int h = node_.featureIndex_;
+            h = 31 * h + Double.valueOf(node_.value_).hashCode();
+            h = 31 * h + node_.target_;
+            h = 31 * h + System.identityHashCode(left_);
+            return 31 * h + System.identityHashCode(right_);
+        }
+    }
+
     public static void printTree(TreeNode node, String indedent) {
         if (node.isLeafNode_) {
             System.out.println(indedent + "target:" + node.target_);
@@ -253,6 +1970,6 @@ public class RandomForest {
         int[] targets = new int[] { 1, 2, 3, 4 };
         RandomForest rf = new RandomForest();
         rf.train(instances, targets, 1, 2, -1, 10);
-        printTree(rf.trees_[0], "");
+        printTree(rf.forest_.trees_[0], "");
     }
 }
@@ -0,0 +1,230 @@
+package faen;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Trains a RandomForest with several worker processes. The training data is
+ * written once to a dataset file, every worker maps it read only and trains a
+ * disjoint range of trees into its own shard model file, and the coordinator
+ * merges the shards in tree order into one model. The merged forest is the
+ * one RandomForest.train() builds with the same parameters and seed.
+ *
+ * <pre>
+ * java faen.ShardedTraining train dataset model numOfTrees numOfFeatures maxDepth \
+ *         treeSize splitMode workers seed
+ * java faen.ShardedTraining worker dataset shard firstTree numOfTrees numOfFeatures \
+ *         maxDepth treeSize splitMode parallelism seed
+ * java faen.ShardedTraining merge model shard...
+ * </pre>
+ *
+ * splitMode is the name of a RandomForest.SplitMode. LEVEL_WISE reads the
+ * mapped dataset column by column and keeps no sorted copies of it.
+ *
+ * "train" runs the workers as local processes. To spread them over several
+ * hosts, run "worker" on each host with its own tree range, copy the shards
+ * to one place and run "merge".
+ */
+public class ShardedTraining {
+    // "RFDS"
+    private static final int MAGIC = 0x52464453;
+    private static final int VERSION = 1;
+
+    /**
+     * Write training data for the workers. All numbers are big endian:
+     *
+     * <pre>
+     * int      MAGIC, VERSION
+     * int      number of instances, number of features
+     * int[]    targets
+     * int      0, only if needed to align the values to 8 bytes
+     * double[] values, column by column
+     * </pre>
+     */
+    public static void writeDataset(File file, double[][] instances, int[] targets)
+            throws IOException {
+        RandomForest.Util.CHECK(instances.length == targets.length && instances.length > 0, "");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(instances.length);
+            out.writeInt(instances[0].length);
+            for (int target : targets) {
+                out.writeInt(target);
+            }
+            if (out.size() % 8 != 0) {
+                out.writeInt(0);
+            }
+            for (int featureIndex = 0; featureIndex < instances[0].length; featureIndex++) {
+                for (double[] instance : instances) {
+                    out.writeDouble(instance[featureIndex]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    // Training data mapped from a file written by writeDataset().
+    static class Dataset {
+        final FeatureStore data_;
+        final int[] targets_;
+
+        Dataset(File file) throws IOException {
+            ByteBuffer buffer;
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                RandomForest.Util.CHECK(channel.size() <= Integer.MAX_VALUE,
+                        "dataset files are limited to 2GB");
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            } finally {
+                channel.close();
+            }
+            RandomForest.Util.CHECK(buffer.getInt(0) == MAGIC, "not a dataset file");
+            RandomForest.Util.CHECK(buffer.getInt(4) == VERSION, "unsupported dataset version: "
+                    + buffer.getInt(4));
+            int numOfInstances = buffer.getInt(8);
+            int numOfFeatures = buffer.getInt(12);
+            targets_ = new int[numOfInstances];
+            buffer.position(16);
+            buffer.asIntBuffer().get(targets_);
+            int offset = 16 + 4 * numOfInstances;
+            if (offset % 8 != 0) {
+                offset += 4;
+            }
+            buffer.position(offset);
+            data_ = new MappedStore(numOfInstances, numOfFeatures, buffer.slice().asDoubleBuffer());
+        }
+    }
+
+    // Feature values read straight from the mapped dataset file.
+    private static class MappedStore extends FeatureStore {
+        private final DoubleBuffer values_;
+
+        MappedStore(int numOfInstances, int numOfFeatures, DoubleBuffer values) {
+            super(numOfInstances, numOfFeatures);
+            this.values_ = values;
+        }
+
+        @Override
+        public double get(int instanceIndex, int featureIndex) {
+            return values_.get(featureIndex * numOfInstances_ + instanceIndex);
+        }
+
+        @Override
+        public long getMemorySize() {
+            return 8L * values_.capacity();
+        }
+    }
+
+    // Train the trees [firstTree, firstTree + numOfTrees) into a shard file.
+    public static void trainShard(File dataset, File shard, int firstTree, int numOfTrees,
+            int numOfFeatures, int maxDepth, int treeSize, RandomForest.SplitMode splitMode,
+            int parallelism, long seed) throws IOException {
+        Dataset d = new Dataset(dataset);
+        RandomForest rf = new RandomForest();
+        rf.trainShard(d.data_, d.targets_, firstTree, numOfTrees, numOfFeatures, maxDepth,
+                treeSize, splitMode, parallelism, seed);
+        rf.save(shard);
+    }
+
+    // Merge shard files, in the given order, into one model file.
+    public static void merge(File model, List<File> shards) throws IOException {
+        RandomForest[] forests = new RandomForest[shards.size()];
+        for (int i = 0; i < forests.length; i++) {
+            forests[i] = RandomForest.load(shards.get(i));
+        }
+        RandomForest.merge(forests).save(model);
+    }
+
+    /**
+     * Train numOfTrees trees with numOfWorkers local worker processes, each
+     * using its share of the processors, and merge their shards into model.
+     * The workers run with the class path of this JVM.
+     */
+    public static void train(File dataset, File model, int numOfTrees, int numOfFeatures,
+            int maxDepth, int treeSize, RandomForest.SplitMode splitMode, int numOfWorkers,
+            long seed) throws IOException, InterruptedException {
+        RandomForest.Util.CHECK(numOfWorkers > 0 && numOfWorkers <= numOfTrees, "");
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator
+                + "java";
+        int parallelism = Math.max(1, Runtime.getRuntime().availableProcessors() / numOfWorkers);
+        List<File> shards = new ArrayList<File>(numOfWorkers);
+        List<Process> workers = new ArrayList<Process>(numOfWorkers);
+        try {
+            for (int w = 0; w < numOfWorkers; w++) {
+                int firstTree = (int) ((long) numOfTrees * w / numOfWorkers);
+                int lastTree = (int) ((long) numOfTrees * (w + 1) / numOfWorkers);
+                File shard = new File(model.getPath() + ".shard" + w);
+                shards.add(shard);
+                ProcessBuilder pb = new ProcessBuilder(java, "-cp",
+                        System.getProperty("java.class.path"), ShardedTraining.class.getName(),
+                        "worker", dataset.getPath(), shard.getPath(), "" + firstTree, ""
+                                + (lastTree - firstTree), "" + numOfFeatures, "" + maxDepth, ""
+                                + treeSize, splitMode.name(), "" + parallelism, "" + seed);
+                pb.inheritIO();
+                workers.add(pb.start());
+            }
+            for (int w = 0; w < numOfWorkers; w++) {
+                int exitCode = workers.get(w).waitFor();
+                RandomForest.Util.CHECK(exitCode == 0, "worker " + w + " failed with exit code "
+                        + exitCode);
+            }
+            merge(model, shards);
+        } finally {
+            for (Process worker : workers) {
+                worker.destroy();
+            }
+            for (File shard : shards) {
+                shard.delete();
+            }
+        }
+    }
+
+    private static void usage() {
+        System.err.println("usage:\n"
+                + "  train dataset model numOfTrees numOfFeatures maxDepth treeSize splitMode"
+                + " workers seed\n"
+                + "  worker dataset shard firstTree numOfTrees numOfFeatures maxDepth treeSize"
+                + " splitMode parallelism seed\n" + "  merge model shard...\n"
+                + "splitMode: EXHAUSTIVE, EXTRA_TREES or LEVEL_WISE");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 0) {
+            usage();
+        }
+        if (args[0].equals("train") && args.length == 10) {
+            train(new File(args[1]), new File(args[2]), Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+                    Integer.parseInt(args[6]), RandomForest.SplitMode.valueOf(args[7]),
+                    Integer.parseInt(args[8]), Long.parseLong(args[9]));
+        } else if (args[0].equals("worker") && args.length == 11) {
+            trainShard(new File(args[1]), new File(args[2]), Integer.parseInt(args[3]),
+                    Integer.parseInt(args[4]), Integer.parseInt(args[5]),
+                    Integer.parseInt(args[6]), Integer.parseInt(args[7]),
+                    RandomForest.SplitMode.valueOf(args[8]), Integer.parseInt(args[9]),
+                    Long.parseLong(args[10]));
+        } else if (args[0].equals("merge") && args.length >= 3) {
+            List<File> shards = new ArrayList<File>();
+            for (int i = 2; i < args.length; i++) {
+                shards.add(new File(args[i]));
+            }
+            merge(new File(args[1]), shards);
+        } else {
+            usage();
+        }
+    }
+}
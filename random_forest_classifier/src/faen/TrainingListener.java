@@ -0,0 +1,50 @@
+package faen;
+
+// Receives statistics about RandomForest training, see
+// RandomForest.setTrainingListener(). When trees are built in parallel the
+// listener is called from several threads at the same time.
+public interface TrainingListener {
+    // Called once a tree and its out-of-bag votes are done.
+    void onTreeBuilt(TreeStats stats);
+
+    // What it took to build one tree. The nodes, leaves, depth and samples per
+    // leaf describe the tree the forest keeps, after out-of-bag pruning, see
+    // RandomForest.setOutOfBagPruning().
+    public static class TreeStats {
+        public final int treeIndex;
+        // Wall time spent building the tree, in nanoseconds.
+        public final long buildNanos;
+        public final int numOfNodes;
+        public final int numOfLeaves;
+        // Depth of the deepest leaf, the root has depth 1.
+        public final int maxDepth;
+        // Number of split thresholds whose entropy was evaluated.
+        public final long numOfSplitCandidates;
+        // Number of samples (with repetition) reaching the leaves.
+        public final int minSamplesPerLeaf;
+        public final int maxSamplesPerLeaf;
+        public final double meanSamplesPerLeaf;
+
+        public TreeStats(int treeIndex, long buildNanos, int numOfNodes, int numOfLeaves,
+                int maxDepth, long numOfSplitCandidates, int minSamplesPerLeaf,
+                int maxSamplesPerLeaf, double meanSamplesPerLeaf) {
+            this.treeIndex = treeIndex;
+            this.buildNanos = buildNanos;
+            this.numOfNodes = numOfNodes;
+            this.numOfLeaves = numOfLeaves;
+            this.maxDepth = maxDepth;
+            this.numOfSplitCandidates = numOfSplitCandidates;
+            this.minSamplesPerLeaf = minSamplesPerLeaf;
+            this.maxSamplesPerLeaf = maxSamplesPerLeaf;
+            this.meanSamplesPerLeaf = meanSamplesPerLeaf;
+        }
+
+        @Override
+        public String toString() {
+            return "tree:" + treeIndex + ", build ms:" + buildNanos / 1000000 + ", nodes:"
+                    + numOfNodes + ", leaves:" + numOfLeaves + ", max depth:" + maxDepth
+                    + ", split candidates:" + numOfSplitCandidates + ", samples per leaf:"
+                    + minSamplesPerLeaf + "/" + meanSamplesPerLeaf + "/" + maxSamplesPerLeaf;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package faen;
+
+// The vote of a forest, shared by every engine so they all give the same
+// answer, see ForestPredictor. The class that first reaches the highest
+// count wins, a class that only ties it later does not take over.
+// RandomForest.predicateWithEarlyExit() relies on this rule to stop early
+// and still agree with predicate().
+final class Votes {
+    private Votes() {
+    }
+
+    // Add one vote for class index c to votes and return the class index
+    // leading afterwards. bestClass is the one leading before, -1 before the
+    // first vote.
+    static int add(int[] votes, int c, int bestClass) {
+        int count = ++votes[c];
+        if (bestClass < 0 || c == bestClass || count > votes[bestClass]) {
+            return c;
+        }
+        return bestClass;
+    }
+}